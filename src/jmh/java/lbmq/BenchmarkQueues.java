@@ -0,0 +1,21 @@
+package lbmq;
+
+/** Shared construction of the multi-queues used by the benchmarks. */
+final class BenchmarkQueues {
+
+    private BenchmarkQueues() {}
+
+    /**
+     * Creates a multi-queue with the given number of sub-queues, keyed from {@code 0} to {@code subQueues - 1}.
+     * Sub-queues are spread round-robin among {@code priorityGroups} priorities, so that with one group all of them
+     * are served round-robin and with as many groups as sub-queues every sub-queue has its own priority.
+     */
+    static LinkedBlockingMultiQueue<Integer, Object> create(int subQueues, int priorityGroups, int capacity) {
+        LinkedBlockingMultiQueue<Integer, Object> queue = new LinkedBlockingMultiQueue<>();
+        int groups = Math.max(1, Math.min(priorityGroups, subQueues));
+        for (int i = 0; i < subQueues; i++) {
+            queue.addSubQueue(i, i % groups, capacity);
+        }
+        return queue;
+    }
+}
@@ -0,0 +1,218 @@
+package lbmq;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.HdrHistogram.Histogram;
+
+/**
+ * Open-loop, end-to-end latency harness: producers put elements at a fixed rate, consumers take them and record the
+ * time each element spent between its <em>intended</em> send time and the moment it was taken.
+ *
+ * <p>Every element is stamped with the time at which the schedule says it should have been sent, not the time the
+ * producer actually managed to send it. If a put blocks (the sub-queue being full) or the producer thread is delayed,
+ * the elements that should have been sent in the meantime are charged with that delay, so the histograms are not
+ * affected by coordinated omission. This is unlike the JMH benchmarks, which measure throughput or average cost and
+ * hide the tail.
+ *
+ * <p>Each sub-queue has its own producer thread. Results are reported per sub-queue, per priority group and in total,
+ * in microseconds. Parameters are given as {@code name=value} arguments:
+ *
+ * <ul>
+ *   <li>{@code subQueues}: number of sub-queues (default 4)
+ *   <li>{@code priorityGroups}: number of priority groups, sub-queues being spread round-robin (default 2)
+ *   <li>{@code consumers}: number of consumer threads (default 1)
+ *   <li>{@code rate}: total elements per second, split evenly among sub-queues (default 100000)
+ *   <li>{@code capacity}: capacity of each sub-queue (default 10000)
+ *   <li>{@code warmup}: seconds to run before recording (default 10)
+ *   <li>{@code duration}: seconds to record (default 30)
+ * </ul>
+ *
+ * <p>It can be run with {@code ./gradlew latencyHarness -PharnessArgs="rate=500000 consumers=4"}.
+ */
+public class LatencyHarness {
+
+    /** Element carrying its intended send time and origin. */
+    private static final class Message {
+        final long intendedNanos;
+        final int subQueue;
+
+        Message(long intendedNanos, int subQueue) {
+            this.intendedNanos = intendedNanos;
+            this.subQueue = subQueue;
+        }
+    }
+
+    /** Key of the sub-queue the end-of-run markers are put in. */
+    private static final int POISON_KEY = -1;
+
+    /**
+     * Marker telling a consumer to stop. It is put in a sub-queue of lower priority than all others, so it is only
+     * taken once the elements sent by the producers have all been taken.
+     */
+    private static final Message POISON = new Message(0, POISON_KEY);
+
+    private final int subQueues;
+    private final int priorityGroups;
+    private final int consumers;
+    private final long intervalNanos;
+    private final long warmupNanos;
+    private final long durationNanos;
+
+    private final LinkedBlockingMultiQueue<Integer, Message> queue;
+
+    /** Per consumer, per sub-queue histograms. Each consumer only writes its own row. */
+    private final Histogram[][] histograms;
+
+    LatencyHarness(Map<String, String> params) {
+        subQueues = intParam(params, "subQueues", 4);
+        priorityGroups = Math.max(1, Math.min(intParam(params, "priorityGroups", 2), subQueues));
+        consumers = intParam(params, "consumers", 1);
+        int rate = intParam(params, "rate", 100_000);
+        int capacity = intParam(params, "capacity", 10_000);
+        warmupNanos = TimeUnit.SECONDS.toNanos(intParam(params, "warmup", 10));
+        durationNanos = TimeUnit.SECONDS.toNanos(intParam(params, "duration", 30));
+        intervalNanos = TimeUnit.SECONDS.toNanos(1) * subQueues / rate;
+        if (intervalNanos <= 0) {
+            throw new IllegalArgumentException("rate too high for the number of sub-queues: " + rate);
+        }
+        queue = new LinkedBlockingMultiQueue<>();
+        for (int i = 0; i < subQueues; i++) {
+            queue.addSubQueue(i, i % priorityGroups, capacity);
+        }
+        queue.addSubQueue(POISON_KEY, priorityGroups);
+        histograms = new Histogram[consumers][subQueues];
+        for (int c = 0; c < consumers; c++) {
+            for (int i = 0; i < subQueues; i++) {
+                histograms[c][i] = new Histogram(3);
+            }
+        }
+    }
+
+    private static int intParam(Map<String, String> params, String name, int defaultValue) {
+        String value = params.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    void run() throws InterruptedException {
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long recordFrom = start + warmupNanos;
+        long end = recordFrom + durationNanos;
+        List<Thread> producers = new ArrayList<>();
+        for (int i = 0; i < subQueues; i++) {
+            int index = i;
+            // stagger the producers so that they do not all send at the same instant
+            long offset = intervalNanos * i / subQueues;
+            producers.add(new Thread(() -> produce(index, start + offset, end), "producer-" + i));
+        }
+        List<Thread> consumerThreads = new ArrayList<>();
+        for (int c = 0; c < consumers; c++) {
+            int index = c;
+            consumerThreads.add(new Thread(() -> consume(histograms[index], recordFrom), "consumer-" + c));
+        }
+        consumerThreads.forEach(Thread::start);
+        producers.forEach(Thread::start);
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        // consumers take whatever is still queued before the markers, so that those elements are also recorded
+        LinkedBlockingMultiQueue<Integer, Message>.SubQueue poison = queue.getSubQueue(POISON_KEY);
+        for (int c = 0; c < consumers; c++) {
+            poison.put(POISON);
+        }
+        for (Thread consumer : consumerThreads) {
+            consumer.join();
+        }
+        report();
+    }
+
+    private void produce(int index, long start, long end) {
+        LinkedBlockingMultiQueue<Integer, Message>.SubQueue subQueue = queue.getSubQueue(index);
+        try {
+            for (long intended = start; intended < end; intended += intervalNanos) {
+                waitUntil(intended);
+                subQueue.put(new Message(intended, index));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void waitUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            if (remaining > TimeUnit.MICROSECONDS.toNanos(100)) {
+                LockSupport.parkNanos(remaining - TimeUnit.MICROSECONDS.toNanos(50));
+            }
+        }
+    }
+
+    private void consume(Histogram[] histograms, long recordFrom) {
+        try {
+            for (Message message = queue.take(); message != POISON; message = queue.take()) {
+                if (message.intendedNanos >= recordFrom) {
+                    long latency = System.nanoTime() - message.intendedNanos;
+                    histograms[message.subQueue].recordValue(Math.max(latency, 0));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void report() {
+        Histogram total = new Histogram(3);
+        Histogram[] byGroup = new Histogram[priorityGroups];
+        for (int g = 0; g < priorityGroups; g++) {
+            byGroup[g] = new Histogram(3);
+        }
+        Histogram[] bySubQueue = new Histogram[subQueues];
+        for (int i = 0; i < subQueues; i++) {
+            bySubQueue[i] = new Histogram(3);
+            for (int c = 0; c < consumers; c++) {
+                bySubQueue[i].add(histograms[c][i]);
+            }
+            byGroup[i % priorityGroups].add(bySubQueue[i]);
+            total.add(bySubQueue[i]);
+        }
+        System.out.printf(
+                "%d sub-queues, %d priority groups, %d consumers, one element every %d ns per sub-queue%n",
+                subQueues, priorityGroups, consumers, intervalNanos);
+        System.out.printf(
+                "%-16s %12s %10s %10s %10s %10s %10s%n", "", "count", "mean", "p50", "p99", "p99.9", "max");
+        printRow("total", total);
+        for (int g = 0; g < priorityGroups; g++) {
+            printRow("priority " + g, byGroup[g]);
+        }
+        for (int i = 0; i < subQueues; i++) {
+            printRow("sub-queue " + i, bySubQueue[i]);
+        }
+    }
+
+    private static void printRow(String name, Histogram histogram) {
+        System.out.printf(
+                "%-16s %12d %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+                name,
+                histogram.getTotalCount(),
+                histogram.getMean() / 1000,
+                histogram.getValueAtPercentile(50) / 1000.0,
+                histogram.getValueAtPercentile(99) / 1000.0,
+                histogram.getValueAtPercentile(99.9) / 1000.0,
+                histogram.getMaxValue() / 1000.0);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Map<String, String> params = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("expected name=value, got: " + arg);
+            }
+            params.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        new LatencyHarness(params).run();
+    }
+}
@@ -0,0 +1,244 @@
+package lbmq;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Control;
+import org.openjdk.jmh.infra.ThreadParams;
+
+/**
+ * Throughput of concurrent producers and consumers, which is what exercises the contention on the put locks and the
+ * take lock. Each group is named after its thread layout, e.g. {@code p4c1} has four producers and one consumer; other
+ * layouts can be run from the command line with JMH's {@code -tg} option.
+ *
+ * <p>In the plain groups, blocking operations are done with a timeout and retried, so that threads left waiting when an
+ * iteration ends (producers on a full queue, consumers on an empty one) notice the end of the measurement and return.
+ * The {@code Blocking} groups use put and take instead, and the {@code Drain} groups have consumers that call drainTo
+ * (their throughput is reported in elements, as the {@code drained} counter). Once the measurement stops, their
+ * threads switch to the non-blocking operations; the threads that are still running keep releasing the ones that
+ * were already waiting.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class ProducerConsumerBenchmark {
+
+    private static final long TIMEOUT_MICROS = 100;
+
+    private static final int DRAIN_BATCH = 100;
+
+    @Param({"1", "5", "50"})
+    int subQueues;
+
+    @Param({"1", "5"})
+    int priorityGroups;
+
+    @Param({"1000"})
+    int capacity;
+
+    private final Object element = new Object();
+
+    LinkedBlockingMultiQueue<Integer, Object> queue;
+
+    @Setup
+    public void setup() {
+        queue = BenchmarkQueues.create(subQueues, priorityGroups, capacity);
+    }
+
+    /** Each producer thread writes to a fixed sub-queue, producers being spread evenly among sub-queues. */
+    @State(Scope.Thread)
+    public static class Producer {
+
+        LinkedBlockingMultiQueue<Integer, Object>.SubQueue subQueue;
+
+        @Setup
+        public void setup(ProducerConsumerBenchmark benchmark, ThreadParams threadParams) {
+            subQueue = benchmark.queue.getSubQueue(threadParams.getGroupThreadIndex() % benchmark.subQueues);
+        }
+    }
+
+    /** Number of elements drained by each consumer thread in the current iteration. */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class DrainCounter {
+
+        public long drained;
+
+        private final ArrayList<Object> sink = new ArrayList<>(DRAIN_BATCH);
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            drained = 0;
+        }
+    }
+
+    private boolean put(Producer producer, Control control) throws InterruptedException {
+        while (!producer.subQueue.offer(element, TIMEOUT_MICROS, TimeUnit.MICROSECONDS)) {
+            if (control.stopMeasurement) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean blockingPut(Producer producer, Control control) throws InterruptedException {
+        if (control.stopMeasurement) {
+            return producer.subQueue.offer(element);
+        }
+        producer.subQueue.put(element);
+        return true;
+    }
+
+    private Object blockingTake(Control control) throws InterruptedException {
+        if (control.stopMeasurement) {
+            return queue.poll();
+        }
+        return queue.take();
+    }
+
+    private int drain(DrainCounter counter) {
+        counter.sink.clear();
+        int drained = queue.drainTo(counter.sink, DRAIN_BATCH);
+        counter.drained += drained;
+        return drained;
+    }
+
+    private Object take(Control control) throws InterruptedException {
+        Object taken;
+        while ((taken = queue.poll(TIMEOUT_MICROS, TimeUnit.MICROSECONDS)) == null) {
+            if (control.stopMeasurement) {
+                return null;
+            }
+        }
+        return taken;
+    }
+
+    @Benchmark
+    @Group("p1c1")
+    @GroupThreads(1)
+    public boolean p1c1Put(Producer producer, Control control) throws InterruptedException {
+        return put(producer, control);
+    }
+
+    @Benchmark
+    @Group("p1c1")
+    @GroupThreads(1)
+    public Object p1c1Take(Control control) throws InterruptedException {
+        return take(control);
+    }
+
+    @Benchmark
+    @Group("p4c1")
+    @GroupThreads(4)
+    public boolean p4c1Put(Producer producer, Control control) throws InterruptedException {
+        return put(producer, control);
+    }
+
+    @Benchmark
+    @Group("p4c1")
+    @GroupThreads(1)
+    public Object p4c1Take(Control control) throws InterruptedException {
+        return take(control);
+    }
+
+    @Benchmark
+    @Group("p4c4")
+    @GroupThreads(4)
+    public boolean p4c4Put(Producer producer, Control control) throws InterruptedException {
+        return put(producer, control);
+    }
+
+    @Benchmark
+    @Group("p4c4")
+    @GroupThreads(4)
+    public Object p4c4Take(Control control) throws InterruptedException {
+        return take(control);
+    }
+
+    @Benchmark
+    @Group("p16c4")
+    @GroupThreads(16)
+    public boolean p16c4Put(Producer producer, Control control) throws InterruptedException {
+        return put(producer, control);
+    }
+
+    @Benchmark
+    @Group("p16c4")
+    @GroupThreads(4)
+    public Object p16c4Take(Control control) throws InterruptedException {
+        return take(control);
+    }
+
+    @Benchmark
+    @Group("p1c1Blocking")
+    @GroupThreads(1)
+    public boolean p1c1BlockingPut(Producer producer, Control control) throws InterruptedException {
+        return blockingPut(producer, control);
+    }
+
+    @Benchmark
+    @Group("p1c1Blocking")
+    @GroupThreads(1)
+    public Object p1c1BlockingTake(Control control) throws InterruptedException {
+        return blockingTake(control);
+    }
+
+    @Benchmark
+    @Group("p4c4Blocking")
+    @GroupThreads(4)
+    public boolean p4c4BlockingPut(Producer producer, Control control) throws InterruptedException {
+        return blockingPut(producer, control);
+    }
+
+    @Benchmark
+    @Group("p4c4Blocking")
+    @GroupThreads(4)
+    public Object p4c4BlockingTake(Control control) throws InterruptedException {
+        return blockingTake(control);
+    }
+
+    @Benchmark
+    @Group("p4c1Drain")
+    @GroupThreads(4)
+    public boolean p4c1DrainPut(Producer producer, Control control) throws InterruptedException {
+        return blockingPut(producer, control);
+    }
+
+    @Benchmark
+    @Group("p4c1Drain")
+    @GroupThreads(1)
+    public int p4c1DrainTo(DrainCounter counter) {
+        return drain(counter);
+    }
+
+    @Benchmark
+    @Group("p16c4Drain")
+    @GroupThreads(16)
+    public boolean p16c4DrainPut(Producer producer, Control control) throws InterruptedException {
+        return blockingPut(producer, control);
+    }
+
+    @Benchmark
+    @Group("p16c4Drain")
+    @GroupThreads(4)
+    public int p16c4DrainTo(DrainCounter counter) {
+        return drain(counter);
+    }
+}
@@ -0,0 +1,87 @@
+package lbmq;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of taking and peeking as a function of the number of sub-queues, when only a small fraction of them have
+ * elements (e.g. one sub-queue per tenant, with most tenants idle). Sub-queue selection skips empty sub-queues, so this
+ * measures how that cost grows with their number.
+ *
+ * <p>Each non-empty sub-queue holds a single element, which is the sub-queue itself: after taking it, it is offered
+ * back to the same sub-queue, which keeps the number and placement of non-empty sub-queues constant during the run. The
+ * offer costs the same regardless of the number of sub-queues, so the shape of the curve is that of the take.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Xmx4g")
+public class SparseSubQueuesBenchmark {
+
+    @Param({"1", "100", "10000", "100000", "1000000"})
+    int subQueues;
+
+    /** Fraction of sub-queues that have elements. At least one sub-queue is always non-empty. */
+    @Param({"1", "0.01", "0.0001"})
+    double occupancy;
+
+    @Param({"1", "10"})
+    int priorityGroups;
+
+    private LinkedBlockingMultiQueue<Integer, Object> queue;
+
+    @Setup
+    public void setup() {
+        queue = BenchmarkQueues.create(subQueues, priorityGroups, Integer.MAX_VALUE);
+        int nonEmpty = Math.max(1, (int) Math.round(subQueues * occupancy));
+        // spread non-empty sub-queues evenly, so that they fall in all priority groups and are far from each other
+        double stride = (double) subQueues / nonEmpty;
+        for (int i = 0; i < nonEmpty; i++) {
+            LinkedBlockingMultiQueue<Integer, Object>.SubQueue subQueue = queue.getSubQueue((int) (i * stride));
+            subQueue.offer(subQueue);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void refill(Object element) {
+        ((LinkedBlockingMultiQueue<Integer, Object>.SubQueue) element).offer(element);
+    }
+
+    @Benchmark
+    public Object take() throws InterruptedException {
+        Object element = queue.take();
+        refill(element);
+        return element;
+    }
+
+    @Benchmark
+    public Object poll() {
+        Object element = queue.poll();
+        refill(element);
+        return element;
+    }
+
+    /**
+     * Peek followed by poll: repeated peeks would find the same element without scanning, so a poll is needed to move
+     * on. The cost of the peek is the difference with {@link #poll()}.
+     */
+    @Benchmark
+    public Object peekPoll() {
+        Object peeked = queue.peek();
+        Object element = queue.poll();
+        refill(element);
+        return peeked;
+    }
+}
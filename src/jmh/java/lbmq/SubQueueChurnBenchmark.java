@@ -0,0 +1,62 @@
+package lbmq;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of adding and removing a sub-queue mid-flight, in a multi-queue that already holds a number of long-lived
+ * sub-queues. Both operations hold the take lock, so this is time that every consumer is stalled.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class SubQueueChurnBenchmark {
+
+    @Param({"0", "100", "10000"})
+    int subQueues;
+
+    @Param({"1", "10"})
+    int priorityGroups;
+
+    /** Whether the churned sub-queue gets a priority of its own (creating and removing a priority group each time). */
+    @Param({"false", "true"})
+    boolean ownPriority;
+
+    private final Object element = new Object();
+
+    private LinkedBlockingMultiQueue<Integer, Object> queue;
+    private int churnPriority;
+
+    @Setup
+    public void setup() {
+        queue = BenchmarkQueues.create(subQueues, priorityGroups, Integer.MAX_VALUE);
+        churnPriority = ownPriority ? -1 : 0;
+    }
+
+    @Benchmark
+    public Object addRemove() {
+        queue.addSubQueue(-1, churnPriority);
+        return queue.removeSubQueue(-1);
+    }
+
+    @Benchmark
+    public Object addOfferPollRemove() {
+        queue.addSubQueue(-1, churnPriority);
+        queue.getSubQueue(-1).offer(element);
+        queue.poll();
+        return queue.removeSubQueue(-1);
+    }
+}
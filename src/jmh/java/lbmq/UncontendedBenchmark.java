@@ -0,0 +1,102 @@
+package lbmq;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Single-threaded cost of the basic operations, that is, the path length of offer/put, poll/take, peek and drainTo
+ * when no other thread competes for the locks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class UncontendedBenchmark {
+
+    private static final int DRAIN_BATCH = 100;
+
+    @Param({"1", "16", "256"})
+    int subQueues;
+
+    @Param({"1", "4"})
+    int priorityGroups;
+
+    private final Object element = new Object();
+
+    private LinkedBlockingMultiQueue<Integer, Object> queue;
+    private ArrayList<LinkedBlockingMultiQueue<Integer, Object>.SubQueue> subQueueList;
+    private ArrayList<Object> sink;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        queue = BenchmarkQueues.create(subQueues, priorityGroups, Integer.MAX_VALUE);
+        subQueueList = new ArrayList<>(subQueues);
+        for (int i = 0; i < subQueues; i++) {
+            subQueueList.add(queue.getSubQueue(i));
+        }
+        sink = new ArrayList<>(DRAIN_BATCH);
+    }
+
+    private LinkedBlockingMultiQueue<Integer, Object>.SubQueue nextSubQueue() {
+        LinkedBlockingMultiQueue<Integer, Object>.SubQueue subQueue = subQueueList.get(next);
+        next += 1;
+        if (next == subQueueList.size()) {
+            next = 0;
+        }
+        return subQueue;
+    }
+
+    @Benchmark
+    public Object offerPoll() {
+        nextSubQueue().offer(element);
+        return queue.poll();
+    }
+
+    @Benchmark
+    public Object putTake() throws InterruptedException {
+        nextSubQueue().put(element);
+        return queue.take();
+    }
+
+    @Benchmark
+    public Object offerPeekPoll() {
+        nextSubQueue().offer(element);
+        queue.peek();
+        return queue.poll();
+    }
+
+    @Benchmark
+    public Object peekEmpty() {
+        return queue.peek();
+    }
+
+    @Benchmark
+    public Object pollEmpty() {
+        return queue.poll();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DRAIN_BATCH)
+    public int offerDrainTo() {
+        for (int i = 0; i < DRAIN_BATCH; i++) {
+            nextSubQueue().offer(element);
+        }
+        sink.clear();
+        return queue.drainTo(sink);
+    }
+}
@@ -1,40 +1,39 @@
 package lbmq;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 
 /**
  * Chooses the next queue to be used from the highest priority group. If no queue is found it searches the lower
- * priority groups and so on until it finds a queue.
+ * priority groups and so on until it finds a queue. Groups without elements are skipped using the index of ready groups
+ * kept by the multi-queue.
  */
 public class DefaultSubQueueSelection<K, E> implements LinkedBlockingMultiQueue.SubQueueSelection<K, E> {
 
     private ArrayList<LinkedBlockingMultiQueue<K, E>.PriorityGroup> priorityGroups;
+    private BitSet readyGroups;
 
     @Override
     public LinkedBlockingMultiQueue<K, E>.SubQueue getNext() {
-        for (LinkedBlockingMultiQueue<K, E>.PriorityGroup priorityGroup : priorityGroups) {
-            LinkedBlockingMultiQueue<K, E>.SubQueue subQueue = priorityGroup.getNextSubQueue();
-            if (subQueue != null) {
-                return subQueue;
-            }
-        }
-        return null;
+        // assert takeLock.isHeldByCurrentThread();
+        int i = readyGroups.nextSetBit(0);
+        return i < 0 ? null : priorityGroups.get(i).getNextSubQueue();
     }
 
     @Override
     public E peek() {
         // assert takeLock.isHeldByCurrentThread();
-        for (LinkedBlockingMultiQueue<K, E>.PriorityGroup priorityGroup : priorityGroups) {
-            E dequed = priorityGroup.peek();
-            if (dequed != null) {
-                return dequed;
-            }
-        }
-        return null;
+        int i = readyGroups.nextSetBit(0);
+        return i < 0 ? null : priorityGroups.get(i).peek();
     }
 
     @Override
     public void setPriorityGroups(ArrayList<LinkedBlockingMultiQueue<K, E>.PriorityGroup> priorityGroups) {
         this.priorityGroups = priorityGroups;
     }
+
+    @Override
+    public void setReadyGroups(BitSet readyGroups) {
+        this.readyGroups = readyGroups;
+    }
 }
@@ -0,0 +1,167 @@
+package lbmq;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A snapshot of a distribution of durations, in nanoseconds. Values are kept in log-linear buckets (each power of two
+ * is split in 8 sub-buckets), so that percentiles are reported with a relative error below 12.5% at any scale, while
+ * recording is constant-time and the footprint is fixed. Minimum, maximum and mean are exact.
+ *
+ * <p>Instances are immutable; they are obtained from the queue methods that expose timing information.
+ *
+ * @see LinkedBlockingMultiQueue#sojournTimes()
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+    private final long min;
+    private final long max;
+
+    private LatencyHistogram(long[] counts, long count, long sum, long min, long max) {
+        this.counts = counts;
+        this.count = count;
+        this.sum = sum;
+        this.min = min;
+        this.max = max;
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /** Returns the highest value that falls in the given bucket. */
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        long subBucket = SUB_BUCKETS + (index - SUB_BUCKETS) % SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * Returns the number of recorded values.
+     *
+     * @return the number of recorded values
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the smallest recorded value, or 0 if nothing was recorded.
+     *
+     * @return the smallest recorded value, in nanoseconds
+     */
+    public long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    /**
+     * Returns the largest recorded value, or 0 if nothing was recorded.
+     *
+     * @return the largest recorded value, in nanoseconds
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * Returns the sum of all recorded values.
+     *
+     * @return the sum of all recorded values, in nanoseconds
+     */
+    public long getTotal() {
+        return sum;
+    }
+
+    /**
+     * Returns the mean of the recorded values, or 0 if nothing was recorded.
+     *
+     * @return the mean of the recorded values, in nanoseconds
+     */
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * Returns the value below which the given percentage of the recorded values fall. The result is the upper bound of
+     * the bucket in which that value was recorded, capped to the maximum.
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the value at the given percentile, in nanoseconds, or 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100: " + percentile);
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(Math.max(bucketUpperBound(i), min), max);
+            }
+        }
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyHistogram{count=" + count + ", mean=" + (long) getMean() + ", p50=" + getValueAtPercentile(50)
+                + ", p99=" + getValueAtPercentile(99) + ", p99.9=" + getValueAtPercentile(99.9) + ", max=" + max + '}';
+    }
+
+    /**
+     * Thread-safe accumulator of values, from which snapshots are taken. Recording is lock-free; snapshots are not
+     * atomic with respect to concurrent recordings.
+     */
+    static final class Recorder {
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long value) {
+            if (value < 0) {
+                // nanoTime is not guaranteed to be monotonic across threads in all platforms
+                value = 0;
+            }
+            counts.getAndIncrement(bucketIndex(value));
+            sum.getAndAdd(value);
+            long m;
+            while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+                // retry
+            }
+            while (value < (m = min.get()) && !min.compareAndSet(m, value)) {
+                // retry
+            }
+        }
+
+        LatencyHistogram snapshot() {
+            long[] copy = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                copy[i] = counts.get(i);
+                total += copy[i];
+            }
+            return new LatencyHistogram(copy, total, sum.get(), min.get(), max.get());
+        }
+    }
+}
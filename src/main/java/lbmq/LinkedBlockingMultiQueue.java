@@ -7,13 +7,19 @@ package lbmq;
 
 import java.lang.reflect.Array;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -39,6 +45,18 @@ import java.util.concurrent.locks.ReentrantLock;
  * expansion. The capacity, if unspecified, is equal to Integer.MAX_VALUE. Linked nodes are dynamically
  * created upon each insertion unless this would bring the queue above capacity.
  *
+ * <p>Producers and consumers exclude each other with locks, so a thread descheduled while holding one delays the
+ * others that need it. With lock-free insertions (see {@link #setLockFreePuts(boolean)}), producers hold no lock,
+ * but an element is counted before it is linked, and a producer descheduled in between delays the consumers of its
+ * sub-queue: operations that take or peek that element wait for it holding the take lock, spinning briefly and then
+ * yielding the processor so that the producer can run, while drains take the elements that precede it and move on
+ * to other sub-queues. Operations that lock the sub-queue, such as {@code remove} or iteration, wait for the
+ * insertions in progress in the same way. None of the operations is therefore lock-free, but no thread waits longer
+ * than it takes the threads it waits for to be scheduled again.
+ *
+ * <p>Consumers share a single take lock by default. With many consumers, it can be split per priority group, see
+ * {@link #LinkedBlockingMultiQueue(boolean)}.
+ *
  * <p>Not being actually a linear queue, this class does not implement the {@code Collection} or
  * {@code Queue} interfaces. The traditional queue interface is split in the traits: {@code
  * Offerable} and {@code Pollable}. Sub-queues do however implement Collection.
@@ -55,17 +73,98 @@ public class LinkedBlockingMultiQueue<K, E> extends AbstractPollable<E> {
      * gates entry to put (and offer), and has an associated condition for waiting puts. The takeLock, on the other
      * hand, is unique and shared among all the sub-queues.
      *
+     * Unlike in the LinkedBlockingQueue, the condition for waiting takes does not belong to the takeLock, but to a
+     * separate waitLock. Consumers release the takeLock before waiting, and check readyCount again while holding the
+     * waitLock, so the takeLock is only held while actually taking elements: producers (and consumers cascading the
+     * signal) wake up waiters without competing with the consumers that are taking, and woken-up consumers do not need
+     * to reacquire the takeLock just to find that another consumer took the element.
+     *
+     * Waiting consumers are counted, so that signaling can be skipped, without acquiring the waitLock, when nobody is
+     * waiting: a consumer increments the count and then checks readyCount, while signalers update readyCount and then
+     * check the count, both being volatile, so either the consumer sees the elements or the signaler sees the consumer.
+     * Waiting producers of each sub-queue are counted in the same way, against its count, so that consumers skip
+     * acquiring the putLock when there is nobody to signal.
+     *
+     * Optionally, consumers wait in a stack instead of in the notEmpty condition, which is FIFO, so that the most
+     * recently parked consumer is woken up first. The stack is guarded by the waitLock, and a signal wakes up the top
+     * waiter if there is one, and otherwise a consumer waiting on notEmpty, so that changing the order while consumers
+     * are waiting is safe. A consumer that is signaled but gives up waiting (interrupted) passes the signal on.
+     *
      * Each subqueue has a "count" field, that is maintained as an atomic to avoid needing to get both locks in most
      * cases. Also, to minimize need for puts to get takeLock and vice-versa, cascading notifies are used. When a put
      * notices that it has enabled at least one take, it signals taker. That taker in turn signals others if more items
      * have been entered since the signal. And symmetrically for takes signaling puts.
      *
      * The possibility of disabling sub-queues introduces the necessity of an additional centralized atomic count field,
-     * which is also updated in every operation and represents, at any time, how many elements can be taken before
-     * exhausting the queue.
+     * readyCount, that tells whether there are elements that can be taken. Instead of the number of elements, which
+     * every producer and consumer of every sub-queue would have to update, it counts the enabled sub-queues that have
+     * elements, and so it is only updated when a sub-queue goes from empty to non-empty or back (or is enabled, disabled
+     * or removed). Consumers decrement it after they take the last element of a sub-queue, but a producer can make the
+     * sub-queue non-empty again before that, so it can be transiently off by one; every decrement or increment is
+     * eventually matched, and a producer that takes it from zero signals consumers. Operations that do not wait, such
+     * as poll(), peek() and drainTo(), read readyCount before acquiring the takeLock, and return right away if it is
+     * zero, so that polling an empty multi-queue does not contend with consumers and producers.
+     *
+     * A sub-queue is counted in readyCount only by the producer that takes its count from zero, after pushing it to
+     * the pending stack. With the putLock, no other producer can insert in between; lock-free producers can, and
+     * return before the sub-queue is counted, so the window in which their elements cannot be taken lasts until the
+     * first producer is scheduled again. Closing it would cost every lock-free insertion a check of readyCount, so it
+     * is documented instead, see isEmpty().
+     *
+     * The total number of elements, for totalSize(), is kept in a LongAdder, so that producers and consumers update it
+     * on their own stripes instead of contending on a single counter. It counts the elements of the sub-queues that
+     * are counted in readyCount, and it is updated on the same paths as the count of the sub-queue, and in enable(),
+     * clear() and removeSubQueue(). A sub-queue that was removed is no longer counted in either: its producers check
+     * that it is still in a priority group, which is written holding both locks.
      *
      * Operations such as remove(Object) and iterators acquire both the corresponding putLock and the takeLock.
      *
+     * To select a sub-queue without scanning the idle ones, each priority group keeps a ring (an intrusive circular
+     * doubly-linked list, guarded by takeLock) of the sub-queues that are enabled and have elements; the round-robin
+     * cursor is a position in that ring. Consumers unlink a sub-queue as soon as they take its count to zero. Producers,
+     * not holding takeLock, cannot link: when they take the count of an enabled sub-queue from zero to one they push it
+     * to a lock-free stack of pending sub-queues, before updating readyCount, and consumers move the pending sub-queues
+     * to their rings before selecting. A consumer that sees a non-zero readyCount is thus guaranteed to find every
+     * counted sub-queue either in a ring or in the pending stack. A flag prevents a sub-queue from being pushed twice;
+     * consumers clear it before checking the count, so that a producer that finds the flag still set is covered by
+     * that check. Additionally, a bit set indexed by the position of the priority groups tells which ones have a
+     * non-empty ring, so that the highest priority group with elements is found without visiting the empty ones.
+     *
+     * Optionally, the takeLock is split per priority group: each group has a TakeLock of its own, which guards its
+     * ready ring, its own pending stack and the heads of its sub-queues, and an atomic count of its ready sub-queues,
+     * its share of readyCount. Producers increment the count of the group before readyCount, and consumers decrement
+     * readyCount first, so that a consumer that sees readyCount positive finds a group with a positive count, except
+     * transiently. Consumers look for the highest priority group with a positive count without locking, acquire its
+     * lock, and then check again that it has ready sub-queues and that no group of higher priority became ready in
+     * the meantime, retrying otherwise: priority stays strict, and round-robin within a group is kept by its ring.
+     * Waiting is not split: consumers wait on notEmpty until readyCount is positive, so signaling is the same as with a
+     * single lock. The shared takeLock is still acquired to add and remove sub-queues, which also acquire the lock of
+     * the group (always after the takeLock, and before the putLock). Take combining and custom selections need a single
+     * lock, so they are not available with a split lock. Drains lock one group at a time.
+     *
+     * Optionally, consumers combine their takes (flat combining): instead of each of them acquiring the takeLock, they
+     * push a request to a lock-free stack, and whoever holds the lock serves all the pending requests before releasing
+     * it, handing the elements over to the requesters. Requesters that cannot acquire the lock park until served. Every
+     * release of the takeLock checks the stack afterwards, and wakes up a requester if it is not empty; as requesters
+     * try to acquire the lock after pushing, a request is never left in the stack with nobody to serve it. Requests
+     * that find no elements are answered with null, and their consumers wait for elements as usual.
+     *
+     * Producers can combine their insertions in the same way, per sub-queue: requests are pushed to a stack of the
+     * sub-queue, and the holder of its putLock links all of them, updating count (and readyCount) once per batch, and
+     * signaling consumers at most once. Requests that do not fit in the remaining capacity are rejected, and their
+     * producers fall back to the regular path (failing, or waiting for space).
+     *
+     * Alternatively, producers can insert without locking at all. A lock-free insertion reserves space by incrementing
+     * count with a CAS, swaps the node in as the tail of the list, and then links it from the previous tail (as in
+     * Vyukov's multi-producer queue), so consumers can find count incremented and the node not linked yet. Single takes
+     * then wait for it, spinning for a bounded number of iterations and then yielding, as the producer may have been
+     * descheduled; drains and batches stop before it, and drains go on with the other sub-queues. The putLock still
+     * excludes lock-free insertions, as operations that acquire it (e.g. remove(Object), enable(), iterators) need the
+     * list and the counts to be stable: lock-free producers announce themselves in an atomic counter and then check
+     * whether the putLock is held, falling back to the locked path if it is, while threads acquiring the putLock wait
+     * for the counter to drop to zero after acquiring it. Either the producer sees the lock held, or the locker sees the
+     * producer in flight.
+     *
      * Visibility between writers and readers is provided as follows:
      *
      * Whenever an element is enqueued, the putLock is acquired and count updated. A subsequent reader guarantees
@@ -84,23 +183,131 @@ public class LinkedBlockingMultiQueue<K, E> extends AbstractPollable<E> {
      * advance to head.next.
      */
 
+    /*
+     * Atomic operations on fields of the sub-queues. Updaters are used instead of atomic objects, so that a sub-queue
+     * does not carry one extra object per field. Inner classes cannot declare them, hence they are here.
+     */
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<LinkedBlockingMultiQueue.SubQueue> LOCK_FREE_PUTS_IN_FLIGHT =
+            AtomicIntegerFieldUpdater.newUpdater(LinkedBlockingMultiQueue.SubQueue.class, "lockFreePutsInFlight");
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<LinkedBlockingMultiQueue.SubQueue> PENDING =
+            AtomicIntegerFieldUpdater.newUpdater(LinkedBlockingMultiQueue.SubQueue.class, "pending");
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<LinkedBlockingMultiQueue.SubQueue, PutRequest> PUT_REQUESTS =
+            AtomicReferenceFieldUpdater.newUpdater(
+                    LinkedBlockingMultiQueue.SubQueue.class, PutRequest.class, "putRequests");
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<LinkedBlockingMultiQueue.SubQueue, Node> LAST =
+            AtomicReferenceFieldUpdater.newUpdater(LinkedBlockingMultiQueue.SubQueue.class, Node.class, "last");
+
     private final ConcurrentHashMap<K, SubQueue> subQueues = new ConcurrentHashMap<>();
 
-    /** Lock held by take, poll, etc */
-    private final ReentrantLock takeLock = new ReentrantLock();
+    /** Lock held by take, poll, etc; if it is split, only by the operations that add or remove sub-queues */
+    private final TakeLock takeLock = new TakeLock(null);
+
+    /** Whether each priority group has a take lock of its own, see the comment at the beginning of the class */
+    private final boolean splitTakeLock;
+
+    /** Maximum number of consecutive elements drainTo takes from each sub-queue in its turn, see setDrainQuantum() */
+    private volatile int drainQuantum = 1;
+
+    /** Iterations that waits for lock-free insertions busy-spin before they start yielding the processor */
+    private static final int SPINS_BEFORE_YIELD = 128;
+
+    /** Maximum number of take requests served in one acquisition of takeLock, so that the server is not starved */
+    private static final int MAX_COMBINED_TAKES = 256;
+
+    /** Maximum number of put requests served in one acquisition of a putLock, so that the server is not starved */
+    private static final int MAX_COMBINED_PUTS = 256;
+
+    /** Whether producers combine their insertions, see setPutCombining() */
+    private volatile boolean putCombining = false;
+
+    /** Whether producers insert without locking when possible, see setLockFreePuts() */
+    private volatile boolean lockFreePuts = false;
+
+    /** Whether consumers combine their takes, see setTakeCombining() */
+    private volatile boolean takeCombining = false;
+
+    /** Top of the stack of takes that consumers published to be served by the holder of takeLock */
+    private final AtomicReference<TakeRequest<E>> takeRequests = new AtomicReference<>();
+
+    /** Lock held while waiting for elements, and to wake up waiting takes */
+    private final ReentrantLock waitLock = new ReentrantLock();
 
     /** Wait queue for waiting takes */
-    private final Condition notEmpty = takeLock.newCondition();
+    private final Condition notEmpty = waitLock.newCondition();
+
+    /** How consumers wait for elements before blocking on notEmpty */
+    private volatile WaitStrategy consumerWaitStrategy = WaitStrategies.blocking();
+
+    /** How producers wait for space before blocking on notFull */
+    private volatile WaitStrategy producerWaitStrategy = WaitStrategies.blocking();
+
+    /** Whether waiting takes are woken up most-recent first, see setLifoWakeup() */
+    private volatile boolean lifoWakeup = false;
 
-    /** Current number of elements in enabled sub-queues */
-    private final AtomicInteger totalCount = new AtomicInteger();
+    /** Top of the stack of takes waiting in LIFO order. Guarded by waitLock */
+    private Waiter lifoWaiters = null;
+
+    /** Number of takes waiting on notEmpty. Written under waitLock, read without it to skip signaling */
+    private volatile int notEmptyWaiters = 0;
+
+    /**
+     * Current number of enabled sub-queues that have elements, see the comment at the beginning of the class.
+     *
+     * <p>It is only incremented after the sub-queue it counts was pushed to pendingSubQueues (or linked to its ring),
+     * and decremented by consumers, holding takeLock, in the same critical section in which they take the count of a
+     * sub-queue to zero and unlink it. Take paths rely on this: holding takeLock and seeing a positive value, after
+     * linkPendingSubQueues() the selection cannot return null, and the selected sub-queue has at least one element
+     * (whose node first() waits for, if a lock-free insertion is still linking it). Producers that take the count of
+     * a sub-queue to more than one do not touch readyCount, so a lock-free producer that counted its element before
+     * the producer of the first one made the sub-queue pending cannot make readyCount positive by itself. If the take
+     * lock is split, the same holds for the count of each group and the lock of the group, see PriorityGroup.
+     */
+    private final AtomicInteger readyCount = new AtomicInteger();
+
+    /**
+     * Number of elements in the sub-queues counted in readyCount, that is, the total size. Updated together with their
+     * counts, after them when they grow and before readyCount when a sub-queue becomes non-empty
+     */
+    private final LongAdder totalCount = new LongAdder();
 
     /** A list of priority groups. Group consists of multiple queues. */
     private final ArrayList<PriorityGroup> priorityGroups = new ArrayList<>();
 
+    /**
+     * Copy of priorityGroups that consumers read without locking, only kept if the take lock is split. Replaced, never
+     * modified, holding takeLock
+     */
+    private volatile ArrayList<PriorityGroup> priorityGroupsSnapshot = new ArrayList<>();
+
+    /** Positions in priorityGroups of the groups that have ready sub-queues. Guarded by takeLock, unless split */
+    private final BitSet readyGroups = new BitSet();
+
     /** Allows to choose the next subQueue to be used. */
     private final SubQueueSelection<K, E> subQueueSelection;
 
+    /** One in how many dequeued elements has its sojourn time recorded, 0 if tracking is disabled */
+    private volatile int sojournSampling = 0;
+
+    /** Sojourn times of the sampled elements */
+    private final LatencyHistogram.Recorder sojournTimes = new LatencyHistogram.Recorder();
+
+    /** Whether sub-queues keep activity counters, see setStatsEnabled(). Written under takeLock */
+    private volatile boolean statsEnabled = false;
+
+    /** Lock profile being recorded, null if profiling is disabled */
+    private volatile LockProfile.Recorder lockProfiler = null;
+
+    /** Last lock profile recorded, kept after profiling is disabled */
+    private volatile LockProfile.Recorder lastLockProfiler = null;
+
     /** Constructor. The default {@link DefaultSubQueueSelection} will be used. */
     public LinkedBlockingMultiQueue() {
         this(new DefaultSubQueueSelection<>());
@@ -112,8 +319,35 @@ public class LinkedBlockingMultiQueue<K, E> extends AbstractPollable<E> {
      * @param subQueueSelection an implementation of {@link SubQueueSelection}
      */
     public LinkedBlockingMultiQueue(SubQueueSelection<K, E> subQueueSelection) {
+        this(subQueueSelection, false);
+    }
+
+    /**
+     * Constructor, optionally splitting the take lock per priority group. The default {@link DefaultSubQueueSelection}
+     * will be used.
+     *
+     * <p>By default, all the consumers share a single take lock. With a split lock, each priority group has a take lock
+     * of its own, and consumers only acquire the lock of the group they take from, so that consumers served from
+     * different groups (e.g. those that find the highest priority group drained) and inspection operations on
+     * different groups do not contend. Elements are still taken in strict priority order, and round-robin within a
+     * group. Finding the group to take from costs a scan of the groups without locking, which makes it worthwhile only
+     * with many consumers.
+     *
+     * <p>With a split lock, take combining is not available (see {@link #setTakeCombining(boolean)}), and drains lock
+     * one priority group at a time, so the elements they transfer can interleave with those taken concurrently from
+     * other groups.
+     *
+     * @param splitTakeLock whether each priority group has a take lock of its own
+     */
+    public LinkedBlockingMultiQueue(boolean splitTakeLock) {
+        this(new DefaultSubQueueSelection<>(), splitTakeLock);
+    }
+
+    private LinkedBlockingMultiQueue(SubQueueSelection<K, E> subQueueSelection, boolean splitTakeLock) {
+        this.splitTakeLock = splitTakeLock;
         this.subQueueSelection = subQueueSelection;
         this.subQueueSelection.setPriorityGroups(this.priorityGroups);
+        this.subQueueSelection.setReadyGroups(this.readyGroups);
     }
 
     /** Set of sub-queues with the same priority */
@@ -122,11 +356,23 @@ public class LinkedBlockingMultiQueue<K, E> extends AbstractPollable<E> {
         final int priority;
         final ArrayList<SubQueue> queues = new ArrayList<>(0);
 
+        /** Lock that guards the ready ring: takeLock, or one of its own if the take lock is split */
+        final TakeLock takeLock;
+
+        /** Number of enabled sub-queues of this group that have elements, only kept if the take lock is split */
+        final AtomicInteger readySubQueues;
+
         PriorityGroup(int priority) {
             this.priority = priority;
+            this.takeLock = splitTakeLock ? new TakeLock(this) : LinkedBlockingMultiQueue.this.takeLock;
+            this.readySubQueues = splitTakeLock ? new AtomicInteger() : null;
         }
 
-        int nextIdx = 0;
+        /** Position of this group in priorityGroups */
+        int index;
+
+        /** Next sub-queue to serve, in the ring of enabled and non-empty sub-queues; null if there are none */
+        SubQueue ready = null;
 
         void addQueue(SubQueue subQueue) {
             queues.add(subQueue);
@@ -138,80 +384,169 @@ public class LinkedBlockingMultiQueue<K, E> extends AbstractPollable<E> {
             while (it.hasNext()) {
                 SubQueue subQueue = it.next();
                 if (subQueue.key == removed.key) {
-                    removed.putLock.lock();
+                    // not removed.fullyLock(), which finds the lock through priorityGroup
+                    takeLock.lock(LockProfile.Site.REMOVE_SUB_QUEUE);
+                    removed.lockPut(LockProfile.Site.REMOVE_SUB_QUEUE);
                     try {
                         it.remove();
-                        if (nextIdx == queues.size()) {
-                            nextIdx = 0;
-                        }
-                        if (subQueue.enabled) {
-                            totalCount.getAndAdd(-removed.size());
+                        unlinkReady(removed);
+                        int c = removed.count.get();
+                        if (removed.enabled && c > 0) {
+                            totalCount.add(-c);
+                            decrementReady();
                         }
+                        // from now on, it is not linked again if pending
+                        removed.priorityGroup = null;
                         return;
                     } finally {
-                        removed.putLock.unlock();
+                        removed.unlockPut(LockProfile.Site.REMOVE_SUB_QUEUE);
+                        takeLock.unlock(LockProfile.Site.REMOVE_SUB_QUEUE);
                     }
                 }
             }
         }
 
+        /**
+         * Counts one more ready sub-queue of this group in readyCount, see the comment at the beginning of the class.
+         *
+         * @return the previous value of readyCount
+         */
+        int incrementReady() {
+            if (readySubQueues != null) {
+                readySubQueues.getAndIncrement();
+            }
+            return readyCount.getAndIncrement();
+        }
+
+        /**
+         * Counts one less ready sub-queue of this group in readyCount.
+         *
+         * @return the new value of readyCount
+         */
+        int decrementReady() {
+            int ready = readyCount.decrementAndGet();
+            if (readySubQueues != null) {
+                readySubQueues.getAndDecrement();
+            }
+            return ready;
+        }
+
         SubQueue getNextSubQueue() {
             // assert takeLock.isHeldByCurrentThread();
-            int startIdx = nextIdx;
-            ArrayList<SubQueue> queues = this.queues;
-            do {
-                SubQueue child = queues.get(nextIdx);
-                nextIdx += 1;
-                if (nextIdx == queues.size()) {
-                    nextIdx = 0;
-                }
-                if (child.enabled && !child.isEmpty()) {
-                    return child;
+            SubQueue child = ready;
+            if (child != null) {
+                ready = child.readyNext;
+            }
+            return child;
+        }
+
+        int drainTo(Collection<? super E> c, int maxElements, int quantum) {
+            // assert takeLock.isHeldByCurrentThread();
+            int drained = 0;
+            // first sub-queue that gave nothing since the last one that did, its next node is still being linked
+            SubQueue stalled = null;
+            while (drained < maxElements && ready != null && ready != stalled) {
+                SubQueue child = ready;
+                ready = child.readyNext;
+                int n = child.dequeueTo(c, Math.min(quantum, maxElements - drained));
+                if (n > 0) {
+                    drained += n;
+                    stalled = null;
+                } else if (stalled == null) {
+                    stalled = child;
                 }
-            } while (nextIdx != startIdx);
-            return null;
+            }
+            return drained;
         }
 
-        int drainTo(Collection<? super E> c, int maxElements) {
+        int drainTo(Object[] target, int offset, int maxElements, int quantum) {
             // assert takeLock.isHeldByCurrentThread();
             int drained = 0;
-            int emptyQueues = 0;
-            do {
-                SubQueue child = queues.get(nextIdx);
-                nextIdx += 1;
-                if (nextIdx == queues.size()) {
-                    nextIdx = 0;
-                }
-                if (child.enabled && !child.isEmpty()) {
-                    emptyQueues = 0;
-                    c.add(child.dequeue());
-                    drained += 1;
-                    int oldSize = child.count.getAndDecrement();
-                    if (oldSize == child.capacity) {
-                        child.signalNotFull();
-                    }
-                } else {
-                    emptyQueues += 1;
+            // first sub-queue that gave nothing since the last one that did, its next node is still being linked
+            SubQueue stalled = null;
+            while (drained < maxElements && ready != null && ready != stalled) {
+                SubQueue child = ready;
+                ready = child.readyNext;
+                int n = child.dequeueTo(target, offset + drained, Math.min(quantum, maxElements - drained));
+                if (n > 0) {
+                    drained += n;
+                    stalled = null;
+                } else if (stalled == null) {
+                    stalled = child;
                 }
-            } while (drained < maxElements && emptyQueues < queues.size());
+            }
             return drained;
         }
 
+        /** Returns how many elements a drain of at most maxElements takes from this group, with a split take lock. */
+        int drainLimit(int maxElements) {
+            // assert takeLock.isHeldByCurrentThread();
+            // see LinkedBlockingMultiQueue.drainLimit()
+            return maxElements > readySubQueues.get() ? (int) Math.min(maxElements, readySize()) : maxElements;
+        }
+
+        /** Returns the number of elements in the sub-queues of the ready ring. */
+        long readySize() {
+            // assert takeLock.isHeldByCurrentThread();
+            long size = 0;
+            SubQueue child = ready;
+            if (child != null) {
+                do {
+                    size += child.count.get();
+                    child = child.readyNext;
+                } while (child != ready);
+            }
+            return size;
+        }
+
         E peek() {
             // assert takeLock.isHeldByCurrentThread();
-            int startIdx = nextIdx;
-            do {
-                SubQueue child = queues.get(nextIdx);
-                if (child.enabled && !child.isEmpty()) {
-                    return child.head.next.item;
-                } else {
-                    nextIdx += 1;
-                    if (nextIdx == queues.size()) {
-                        nextIdx = 0;
-                    }
+            return ready == null ? null : ready.first().item;
+        }
+
+        /** Adds a sub-queue to the ready ring, to be served last in the current round. */
+        void linkReady(SubQueue subQueue) {
+            // assert takeLock.isHeldByCurrentThread();
+            // assert subQueue.readyNext == null;
+            SubQueue next = ready;
+            if (next == null) {
+                subQueue.readyNext = subQueue;
+                subQueue.readyPrev = subQueue;
+                ready = subQueue;
+                if (!splitTakeLock) {
+                    readyGroups.set(index);
                 }
-            } while (nextIdx != startIdx);
-            return null;
+            } else {
+                SubQueue prev = next.readyPrev;
+                subQueue.readyNext = next;
+                subQueue.readyPrev = prev;
+                prev.readyNext = subQueue;
+                next.readyPrev = subQueue;
+            }
+        }
+
+        /** Removes a sub-queue from the ready ring, if it is in it. */
+        void unlinkReady(SubQueue subQueue) {
+            // assert takeLock.isHeldByCurrentThread();
+            SubQueue next = subQueue.readyNext;
+            if (next == null) {
+                return;
+            }
+            if (next == subQueue) {
+                ready = null;
+                if (!splitTakeLock) {
+                    readyGroups.clear(index);
+                }
+            } else {
+                SubQueue prev = subQueue.readyPrev;
+                prev.readyNext = next;
+                next.readyPrev = prev;
+                if (ready == subQueue) {
+                    ready = next;
+                }
+            }
+            subQueue.readyNext = null;
+            subQueue.readyPrev = null;
         }
     }
 
@@ -238,10 +573,14 @@ public class LinkedBlockingMultiQueue<K, E> extends AbstractPollable<E> {
      */
     public SubQueue addSubQueue(K key, int priority, int capacity) {
         SubQueue subQueue = new SubQueue(key, capacity);
-        takeLock.lock();
+        takeLock.lock(LockProfile.Site.ADD_SUB_QUEUE);
         try {
-            SubQueue old = subQueues.putIfAbsent(key, subQueue);
+            // sub-queues are only added and removed holding takeLock
+            SubQueue old = subQueues.get(key);
             if (old == null) {
+                if (statsEnabled) {
+                    subQueue.enableStats(true);
+                }
                 int i = 0;
                 boolean added = false;
                 for (PriorityGroup pg : priorityGroups) {
@@ -252,6 +591,7 @@ public class LinkedBlockingMultiQueue<K, E> extends AbstractPollable<E> {
                     } else if (pg.priority > priority) {
                         PriorityGroup newPg = new PriorityGroup(priority);
                         priorityGroups.add(i, newPg);
+                        reindexPriorityGroups();
                         newPg.addQueue(subQueue);
                         added = true;
                         break;
@@ -261,12 +601,15 @@ public class LinkedBlockingMultiQueue<K, E> extends AbstractPollable<E> {
                 if (!added) {
                     PriorityGroup newPg = new PriorityGroup(priority);
                     priorityGroups.add(newPg);
+                    reindexPriorityGroups();
                     newPg.addQueue(subQueue);
                 }
+                // publish it once in its group, so that its producers count their elements from the first one
+                subQueues.put(key, subQueue);
             }
             return old;
         } finally {
-            takeLock.unlock();
+            takeLock.unlock(LockProfile.Site.ADD_SUB_QUEUE);
         }
     }
 
@@ -277,18 +620,40 @@ public class LinkedBlockingMultiQueue<K, E> extends AbstractPollable<E> {
      * @return the removed SubQueue or null if the key was not in the map
      */
     public SubQueue removeSubQueue(K key) {
-        takeLock.lock();
+        takeLock.lock(LockProfile.Site.REMOVE_SUB_QUEUE);
         try {
             SubQueue removed = subQueues.remove(key);
             if (removed != null) {
-                removed.priorityGroup.removeQueue(removed);
-                if (removed.priorityGroup.queues.isEmpty()) {
-                    this.priorityGroups.remove(removed.priorityGroup);
+                PriorityGroup priorityGroup = removed.priorityGroup;
+                priorityGroup.removeQueue(removed);
+                if (priorityGroup.queues.isEmpty()) {
+                    this.priorityGroups.remove(priorityGroup);
+                    reindexPriorityGroups();
                 }
             }
             return removed;
         } finally {
-            takeLock.unlock();
+            takeLock.unlock(LockProfile.Site.REMOVE_SUB_QUEUE);
+        }
+    }
+
+    /**
+     * Updates the positions of the priority groups, and the ready bits (or, if the take lock is split, the copy of the
+     * groups), after a group was added or removed.
+     */
+    private void reindexPriorityGroups() {
+        // assert takeLock.isHeldByCurrentThread();
+        readyGroups.clear();
+        for (int i = 0; i < priorityGroups.size(); i++) {
+            PriorityGroup priorityGroup = priorityGroups.get(i);
+            priorityGroup.index = i;
+            // if split, the ready rings are guarded by the locks of the groups, and the bits are not kept
+            if (!splitTakeLock && priorityGroup.ready != null) {
+                readyGroups.set(i);
+            }
+        }
+        if (splitTakeLock) {
+            priorityGroupsSnapshot = new ArrayList<>(priorityGroups);
         }
     }
 
@@ -303,185 +668,1352 @@ public class LinkedBlockingMultiQueue<K, E> extends AbstractPollable<E> {
     }
 
     /**
-     * Signals a waiting take. Called only from put/offer (which do not otherwise ordinarily lock
-     * takeLock.)
+     * Enables or disables the tracking of sojourn times, that is, how long elements stay in the queue. While enabled,
+     * every inserted element is timestamped, which makes {@link SubQueue#oldestElementAgeNanos()} available, and the
+     * sojourn time of one in every {@code sampling} elements taken is recorded in {@link #sojournTimes()}. Recording
+     * happens while consumers hold the take lock, so a sampling greater than one keeps its overhead low on busy
+     * queues.
+     *
+     * <p>Tracking is disabled by default. Changing it only affects elements inserted afterwards.
+     *
+     * @param sampling record the sojourn time of one in this many dequeued elements, or 0 to disable tracking
+     * @throws IllegalArgumentException if sampling is negative
      */
-    private void signalNotEmpty() {
-        takeLock.lock();
-        try {
-            notEmpty.signal();
-        } finally {
-            takeLock.unlock();
+    public void setSojournTracking(int sampling) {
+        if (sampling < 0) {
+            throw new IllegalArgumentException();
         }
+        sojournSampling = sampling;
     }
 
-    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
-        long remaining = unit.toNanos(timeout);
-        SubQueue subQueue;
-        E element;
-        int oldSize;
-        takeLock.lockInterruptibly();
-        try {
-            while (totalCount.get() == 0) {
-                if (remaining <= 0) {
-                    return null;
-                }
-                remaining = notEmpty.awaitNanos(remaining);
-            }
-            // at this point we know there is an element
-            subQueue = subQueueSelection.getNext();
-            element = subQueue.dequeue();
-            oldSize = subQueue.count.getAndDecrement();
-            if (totalCount.getAndDecrement() > 1) {
-                // sub-queue still has elements, notify next poller
-                notEmpty.signal();
-            }
-        } finally {
-            takeLock.unlock();
-        }
-        if (oldSize == subQueue.capacity) {
-            // we just took an element from a full queue, notify any blocked offers
-            subQueue.signalNotFull();
-        }
-        return element;
+    /**
+     * Returns the distribution of sojourn times of the sampled elements taken from all the sub-queues, since the
+     * creation of this multi-queue. It is only populated while tracking is enabled, see {@link
+     * #setSojournTracking(int)}.
+     *
+     * @return the distribution of sojourn times, in nanoseconds
+     */
+    public LatencyHistogram sojournTimes() {
+        return sojournTimes.snapshot();
     }
 
-    public E take() throws InterruptedException {
-        SubQueue subQueue;
-        int oldSize;
-        E element;
-        takeLock.lockInterruptibly();
+    /**
+     * Enables or disables the activity counters of the sub-queues, see {@link SubQueue#stats()}. Counting adds a few
+     * writes to every insertion and removal, and the counters take some memory per sub-queue, so they are only
+     * allocated while enabled. Enabling the counters starts counting from zero, in all the sub-queues, including those
+     * added afterwards.
+     *
+     * <p>Counters are disabled by default. Disabling them keeps the last values, which can still be read.
+     *
+     * @param enabled whether to count the activity of the sub-queues
+     */
+    public void setStatsEnabled(boolean enabled) {
+        takeLock.lock(LockProfile.Site.INSPECT);
         try {
-            while (totalCount.get() == 0) {
-                notEmpty.await();
-            }
-            // at this point we know there is an element
-            subQueue = subQueueSelection.getNext();
-            element = subQueue.dequeue();
-            oldSize = subQueue.count.getAndDecrement();
-            if (totalCount.getAndDecrement() > 1) {
-                // sub-queue still has elements, notify next poller
-                notEmpty.signal();
+            statsEnabled = enabled;
+            for (SubQueue subQueue : subQueues.values()) {
+                subQueue.enableStats(enabled);
             }
         } finally {
-            takeLock.unlock();
-        }
-        if (oldSize == subQueue.capacity) {
-            // we just took an element from a full queue, notify any blocked offers
-            subQueue.signalNotFull();
+            takeLock.unlock(LockProfile.Site.INSPECT);
         }
-        return element;
     }
 
-    public E poll() {
-        SubQueue subQueue;
-        E element;
-        int oldSize;
-        takeLock.lock();
-        try {
-            if (totalCount.get() == 0) {
-                return null;
-            }
-            // at this point we know there is an element
-            subQueue = subQueueSelection.getNext();
-            element = subQueue.dequeue();
-            oldSize = subQueue.count.getAndDecrement();
-            if (totalCount.getAndDecrement() > 1) {
-                // sub-queue still has elements, notify next poller
-                notEmpty.signal();
-            }
-        } finally {
-            takeLock.unlock();
-        }
-        if (oldSize == subQueue.capacity) {
-            // we just took an element from a full queue, notify any blocked offers
-            subQueue.signalNotFull();
+    /**
+     * Enables or disables lock profiling. While enabled, the time that threads wait for and hold the take lock and the
+     * put locks is recorded, split by the operation that acquired them, and can be obtained with {@link
+     * #lockProfile()}. Enabling profiling starts a new profile.
+     *
+     * <p>Profiling is disabled by default. It adds a couple of calls to {@link System#nanoTime()} to every lock
+     * acquisition, so it is cheap enough to be turned on in production for a while, but not free.
+     *
+     * @param enabled whether to profile lock acquisitions
+     */
+    public void setLockProfiling(boolean enabled) {
+        if (enabled) {
+            LockProfile.Recorder profiler = new LockProfile.Recorder();
+            lastLockProfiler = profiler;
+            lockProfiler = profiler;
+        } else {
+            lockProfiler = null;
         }
-        return element;
     }
 
-    public E peek() {
-        takeLock.lock();
-        try {
-            if (totalCount.get() == 0) {
-                return null;
-            } else {
-                return subQueueSelection.peek();
-            }
-        } finally {
-            takeLock.unlock();
+    /**
+     * Returns the current lock profile, or the last one if profiling was disabled. If profiling was never enabled, the
+     * profile is empty.
+     *
+     * @return the lock profile
+     * @see #setLockProfiling(boolean)
+     */
+    public LockProfile lockProfile() {
+        LockProfile.Recorder profiler = lastLockProfiler;
+        return (profiler == null ? new LockProfile.Recorder() : profiler).snapshot();
+    }
+
+    /**
+     * Sets how many consecutive elements {@code drainTo} takes from each sub-queue in its turn. By default, drains take
+     * one element from each sub-queue of a priority group in turn, as {@code poll} would, which means updating the size
+     * and possibly waking up producers once per element, while holding the take lock. With a larger quantum, the
+     * elements taken from a sub-queue in its turn are unlinked at once, and its size is updated once, which makes large
+     * drains (e.g. to catch up with a backlog) much cheaper and blocks other consumers for less time. The order of the
+     * drained elements is then only round-robin in chunks of up to this many elements.
+     *
+     * @param quantum the maximum number of consecutive elements to take from each sub-queue, 1 to interleave them
+     * @throws IllegalArgumentException if quantum is not positive
+     */
+    public void setDrainQuantum(int quantum) {
+        if (quantum <= 0) {
+            throw new IllegalArgumentException();
         }
+        drainQuantum = quantum;
     }
 
     /**
-     * Returns the total size of this multi-queue, that is, the sum of the sizes of all the enabled
-     * sub-queues.
+     * Enables or disables take combining. While enabled, consumers in {@code take} and {@code poll} do not compete for
+     * the take lock: they publish their requests, and the consumer that holds the lock serves all of them in the same
+     * critical section, handing over the elements, while the others park. This replaces the convoy of lock handoffs and
+     * wakeups that happens when many consumers are woken up at the same time (e.g. after a burst) with one lock
+     * acquisition per batch of consumers. Elements are still taken in priority and round-robin order, although
+     * consumers that arrive at the same time are not served in order of arrival.
      *
-     * @return the total size of this multi-queue
+     * <p>Combining is disabled by default. It is only worthwhile with many consumers, as it adds a small allocation and
+     * some atomic operations to every take. {@code peek}, {@code drainTo}, the batch takes and the entry variants are
+     * not combined. It needs a single take lock, so it cannot be enabled if the take lock is split, see {@link
+     * #LinkedBlockingMultiQueue(boolean)}.
+     *
+     * @param enabled whether to combine takes
+     * @throws IllegalStateException if enabling combining and the take lock is split
      */
-    public int totalSize() {
-        return totalCount.get();
+    public void setTakeCombining(boolean enabled) {
+        if (enabled && splitTakeLock) {
+            throw new IllegalStateException();
+        }
+        takeCombining = enabled;
     }
 
     /**
-     * Returns whether this multi-queue is empty, that is, whether there is any element ready to be
-     * taken from the head.
+     * Enables or disables put combining. While enabled, producers in {@code offer} and {@code put} do not compete for
+     * the lock of the sub-queue: they publish their elements, and the producer that holds the lock links all of them to
+     * the sub-queue at once, updating the sizes and waking up consumers once per batch, while the others park. This is
+     * worthwhile when many producers write to the same few sub-queues, and the lock handoffs between them limit the
+     * throughput.
      *
-     * @return whether this multi-queue is empty.
+     * <p>Combining is disabled by default. Elements inserted concurrently by different producers are not necessarily
+     * linked in order of arrival, but elements inserted by the same producer are. Producers that find the sub-queue
+     * full fall back to the regular behavior of each method.
+     *
+     * @param enabled whether to combine insertions
      */
-    public boolean isEmpty() {
-        return totalSize() == 0;
+    public void setPutCombining(boolean enabled) {
+        putCombining = enabled;
     }
 
-    public int drainTo(Collection<? super E> c) {
-        return drainTo(c, Integer.MAX_VALUE);
+    /**
+     * Enables or disables lock-free insertions. While enabled, {@code offer} and {@code put} insert elements with atomic
+     * operations instead of acquiring the lock of the sub-queue, as long as the sub-queue is not full and no other
+     * operation holds its lock. This removes the lock handoffs between producers of the same sub-queue, which are the
+     * bottleneck when there are many of them. Producers that find the sub-queue full fall back to the regular behavior
+     * of each method, blocking if needed.
+     *
+     * <p>Lock-free insertions are disabled by default. Operations that acquire the sub-queue lock (e.g. blocking puts on
+     * a full sub-queue, {@code remove}, iterators or {@code enable}) wait for lock-free insertions in progress to
+     * complete, and make new ones fall back to the lock. When both this and {@link #setPutCombining(boolean)} are
+     * enabled, producers try the lock-free path first.
+     *
+     * <p>An element inserted while another insertion into the same sub-queue is in progress can be unavailable to
+     * consumers until the other insertion completes, see {@link #isEmpty()}.
+     *
+     * @param enabled whether to insert without locking
+     */
+    public void setLockFreePuts(boolean enabled) {
+        lockFreePuts = enabled;
     }
 
-    public int drainTo(Collection<? super E> c, int maxElements) {
-        if (c == null) {
+    /**
+     * Sets how consumers wait for elements when the multi-queue is empty, before blocking, in {@code take} and {@code
+     * poll} with timeout. Strategies that do not block (e.g. {@link WaitStrategies#busySpin()}) hand elements over
+     * faster, as producers do not have to wake up the consumers, but keep a core busy per waiting consumer.
+     *
+     * <p>The default is {@link WaitStrategies#blocking()}.
+     *
+     * @param strategy the consumer wait strategy
+     * @throws NullPointerException if strategy is null
+     */
+    public void setConsumerWaitStrategy(WaitStrategy strategy) {
+        if (strategy == null) {
             throw new NullPointerException();
         }
-        if (maxElements <= 0) {
-            return 0;
-        }
-        takeLock.lock();
-        try {
-            int n = Math.min(maxElements, totalCount.get());
-            // ordered iteration, begin with lower index (highest priority)
-            int drained = 0;
-            for (int i = 0; i < priorityGroups.size() && drained < n; i++) {
-                drained += priorityGroups.get(i).drainTo(c, n - drained);
-            }
-            // assert drained == n;
-            totalCount.getAndAdd(-drained);
-            return drained;
-        } finally {
-            takeLock.unlock();
+        consumerWaitStrategy = strategy;
+    }
+
+    /**
+     * Sets how producers wait for space when a sub-queue is full, before blocking, in {@code put} and {@code offer}
+     * with timeout. Producers use the strategy before acquiring the lock of the sub-queue, so that operations that
+     * need it (other producers, or {@code contains}, {@code enable} or iterators, which also exclude consumers) are not
+     * held up while a producer spins, and they only block on the lock's condition once the strategy gives up.
+     *
+     * <p>The default is {@link WaitStrategies#blocking()}.
+     *
+     * @param strategy the producer wait strategy
+     * @throws NullPointerException if strategy is null
+     */
+    public void setProducerWaitStrategy(WaitStrategy strategy) {
+        if (strategy == null) {
+            throw new NullPointerException();
         }
+        producerWaitStrategy = strategy;
     }
 
     /**
-     * Counts the priority groups currently registered in {@link LinkedBlockingMultiQueue}. Suitable
-     * for debugging and testing.
+     * Sets whether consumers waiting for elements are woken up in LIFO order, that is, most-recently-parked first,
+     * instead of the default FIFO order. Under light load, LIFO order keeps the work in a few hot threads, with warm
+     * caches, while the rest stay parked, which also lets pools with an idle timeout retire the surplus threads.
      *
-     * @return the number of priority groups currently registered
+     * <p>The default is FIFO order, which spreads the work across all the consumers.
+     *
+     * @param enabled whether to wake up consumers in LIFO order
      */
-    public int getPriorityGroupsCount() {
-        return priorityGroups.size();
+    public void setLifoWakeup(boolean enabled) {
+        lifoWakeup = enabled;
     }
 
     /**
-     * Represent a sub-queue inside a multi-queue. Instances of this class are just like any blocking
-     * queue except that elements cannot be taken from their heads.
+     * A take lock, along with the state that it guards apart from the ready rings and the heads of the sub-queues.
+     * There is one for the whole multi-queue, takeLock, and, if the take lock is split, one per priority group, see
+     * the comment at the beginning of the class.
+     *
+     * <p>Its operations are profiled. When profiling is disabled, they add just a volatile read on lock and a plain
+     * read on unlock. Only the outermost acquisition of the reentrant lock is profiled. The profiler is remembered on
+     * acquisition, so that profiling being enabled or disabled while the lock is held does not produce bogus hold
+     * times.
      */
-    public class SubQueue extends AbstractOfferable<E> {
+    private final class TakeLock {
 
-        private final K key;
-        private final int capacity;
-        private PriorityGroup priorityGroup;
+        private final ReentrantLock lock = new ReentrantLock();
 
-        SubQueue(K key, int capacity) {
-            if (capacity <= 0) throw new IllegalArgumentException();
+        /** The priority group whose ready ring this lock guards, or null if it guards those of all the groups */
+        private final PriorityGroup group;
+
+        /** Top of the stack of sub-queues that became non-empty and are yet to be linked to their ready rings */
+        private final AtomicReference<SubQueue> pendingSubQueues = new AtomicReference<>();
+
+        /**
+         * Sub-queues that were taken from while full and have producers waiting for space, to be signaled after
+         * releasing this lock, as signaling acquires their putLock. Null if there are none. Guarded by this lock
+         */
+        private ArrayList<SubQueue> pendingNotFullSignals = null;
+
+        /** Dequeued timestamped elements to skip before recording the next sojourn time. Guarded by this lock */
+        private int sojournCountdown = 0;
+
+        /** Profiler of the current acquisition, null if not profiled. Guarded by this lock */
+        private LockProfile.Recorder profiler = null;
+
+        /** When this lock was acquired, if profiled. Guarded by this lock */
+        private long acquiredNanos;
+
+        TakeLock(PriorityGroup group) {
+            this.group = group;
+        }
+
+        void lock(LockProfile.Site site) {
+            LockProfile.Recorder profiler = lockProfiler;
+            if (profiler == null) {
+                lock.lock();
+            } else {
+                long start = System.nanoTime();
+                lock.lock();
+                acquired(profiler, site, start);
+            }
+        }
+
+        void lockInterruptibly(LockProfile.Site site) throws InterruptedException {
+            LockProfile.Recorder profiler = lockProfiler;
+            if (profiler == null) {
+                lock.lockInterruptibly();
+            } else {
+                long start = System.nanoTime();
+                lock.lockInterruptibly();
+                acquired(profiler, site, start);
+            }
+        }
+
+        /** Acquires this lock if it is free. Used by combining takes, which do not block on the lock. */
+        boolean tryLock(LockProfile.Site site) {
+            LockProfile.Recorder profiler = lockProfiler;
+            long start = profiler == null ? 0 : System.nanoTime();
+            if (!lock.tryLock()) {
+                return false;
+            }
+            if (profiler != null) {
+                acquired(profiler, site, start);
+            }
+            return true;
+        }
+
+        private void acquired(LockProfile.Recorder profiler, LockProfile.Site site, long start) {
+            if (lock.getHoldCount() == 1) {
+                long now = System.nanoTime();
+                profiler.recordWait(LockProfile.Lock.TAKE, site, now - start);
+                this.profiler = profiler;
+                acquiredNanos = now;
+            }
+        }
+
+        void unlock(LockProfile.Site site) {
+            LockProfile.Recorder profiler = this.profiler;
+            if (profiler != null && lock.getHoldCount() == 1) {
+                profiler.recordHold(LockProfile.Lock.TAKE, site, System.nanoTime() - acquiredNanos);
+                this.profiler = null;
+            }
+            ArrayList<SubQueue> notFullSignals = null;
+            if (pendingNotFullSignals != null && lock.getHoldCount() == 1) {
+                notFullSignals = pendingNotFullSignals;
+                pendingNotFullSignals = null;
+            }
+            lock.unlock();
+            // a combining take may have been published while the lock was held, see the comment at the beginning of the
+            // class
+            TakeRequest<E> request = takeRequests.get();
+            if (request != null) {
+                LockSupport.unpark(request.thread);
+            }
+            if (notFullSignals != null) {
+                for (SubQueue subQueue : notFullSignals) {
+                    subQueue.signalNotFull();
+                }
+            }
+        }
+
+        /**
+         * Links the sub-queues that became non-empty since the last call to the ready rings of their priority groups,
+         * in the order in which they became non-empty. Must be called before selecting a sub-queue.
+         */
+        void linkPendingSubQueues() {
+            // assert lock.isHeldByCurrentThread();
+            if (pendingSubQueues.get() == null) {
+                return;
+            }
+            SubQueue p = pendingSubQueues.getAndSet(null);
+            SubQueue reversed = null;
+            while (p != null) {
+                SubQueue next = p.pendingNext;
+                p.pendingNext = reversed;
+                reversed = p;
+                p = next;
+            }
+            while (reversed != null) {
+                SubQueue subQueue = reversed;
+                reversed = subQueue.pendingNext;
+                subQueue.pendingNext = null;
+                // clear the flag before checking the count, see the comment at the beginning of the class
+                PENDING.set(subQueue, 0);
+                PriorityGroup priorityGroup = subQueue.priorityGroup;
+                if (priorityGroup != null
+                        && subQueue.enabled
+                        && subQueue.readyNext == null
+                        && subQueue.count.get() > 0) {
+                    priorityGroup.linkReady(subQueue);
+                }
+            }
+        }
+
+        /** Returns the next sub-queue to take from, among those this lock guards. */
+        SubQueue nextSubQueue() {
+            // assert lock.isHeldByCurrentThread();
+            return group == null ? subQueueSelection.getNext() : group.getNextSubQueue();
+        }
+
+        /** Returns the next element to take, among those this lock guards, without taking it. */
+        E peek() {
+            // assert lock.isHeldByCurrentThread();
+            return group == null ? subQueueSelection.peek() : group.peek();
+        }
+
+        void recordSojourn(long enqueuedNanos) {
+            // assert lock.isHeldByCurrentThread();
+            int sampling = sojournSampling;
+            if (sampling > 0) {
+                sojournCountdown -= 1;
+                if (sojournCountdown <= 0) {
+                    sojournCountdown = sampling;
+                    sojournTimes.record(System.nanoTime() - enqueuedNanos);
+                }
+            }
+        }
+
+        /** Arranges for the given sub-queue to be signaled when this lock is released, see SubQueue.signalNotFull(). */
+        void deferSignalNotFull(SubQueue subQueue) {
+            // assert lock.isHeldByCurrentThread();
+            if (pendingNotFullSignals == null) {
+                pendingNotFullSignals = new ArrayList<>();
+            }
+            if (!pendingNotFullSignals.contains(subQueue)) {
+                pendingNotFullSignals.add(subQueue);
+            }
+        }
+    }
+
+    /**
+     * Waits until there are elements, or the thread is interrupted. The takeLock is released while waiting, and held
+     * again on return, also if interrupted.
+     */
+    private void awaitNotEmpty(LockProfile.Site site) throws InterruptedException {
+        takeLock.unlock(site);
+        try {
+            waitNotEmpty(site);
+        } finally {
+            takeLock.lock(site);
+        }
+    }
+
+    /** Waits until there are elements, or the thread is interrupted. Must be called without holding the takeLock. */
+    private void waitNotEmpty(LockProfile.Site site) throws InterruptedException {
+        idleNotEmpty(Long.MAX_VALUE);
+        LockProfile.Recorder profiler = lockProfiler;
+        long acquiredNanos = lockWait(profiler, site);
+        // before checking readyCount, see the comment at the beginning of the class
+        notEmptyWaiters++;
+        Object event = QueueEvents.beginConsumerWait();
+        try {
+            while (readyCount.get() <= 0) {
+                recordWaitHold(profiler, site, acquiredNanos);
+                if (lifoWakeup) {
+                    awaitLifo(false, 0);
+                } else {
+                    notEmpty.await();
+                }
+                acquiredNanos = profiler == null ? 0 : System.nanoTime();
+            }
+        } finally {
+            QueueEvents.endConsumerWait(event);
+            notEmptyWaiters--;
+            unlockWait(profiler, site, acquiredNanos);
+        }
+    }
+
+    /**
+     * Waits until there are elements, the timeout elapses, or the thread is interrupted. The takeLock is released while
+     * waiting, and held again on return, also if interrupted.
+     */
+    private long awaitNotEmptyNanos(long nanos, LockProfile.Site site) throws InterruptedException {
+        takeLock.unlock(site);
+        try {
+            return waitNotEmptyNanos(nanos, site);
+        } finally {
+            takeLock.lock(site);
+        }
+    }
+
+    /**
+     * Waits until there are elements, the timeout elapses, or the thread is interrupted. Must be called without holding
+     * the takeLock.
+     */
+    private long waitNotEmptyNanos(long nanos, LockProfile.Site site) throws InterruptedException {
+        nanos = idleNotEmpty(nanos);
+        LockProfile.Recorder profiler = lockProfiler;
+        long acquiredNanos = lockWait(profiler, site);
+        // before checking readyCount, see the comment at the beginning of the class
+        notEmptyWaiters++;
+        Object event = QueueEvents.beginConsumerWait();
+        try {
+            while (readyCount.get() <= 0 && nanos > 0) {
+                recordWaitHold(profiler, site, acquiredNanos);
+                nanos = lifoWakeup ? awaitLifo(true, nanos) : notEmpty.awaitNanos(nanos);
+                acquiredNanos = profiler == null ? 0 : System.nanoTime();
+            }
+            return nanos;
+        } finally {
+            QueueEvents.endConsumerWait(event);
+            notEmptyWaiters--;
+            unlockWait(profiler, site, acquiredNanos);
+        }
+    }
+
+    /**
+     * Waits with the consumer wait strategy until there are elements, the strategy gives up, or the timeout elapses.
+     *
+     * @return the remaining time, in nanoseconds
+     */
+    private long idleNotEmpty(long nanos) throws InterruptedException {
+        WaitStrategy strategy = consumerWaitStrategy;
+        long start = System.nanoTime();
+        long remaining = nanos;
+        for (int attempt = 0; readyCount.get() <= 0 && remaining > 0; attempt++) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (!strategy.idle(attempt)) {
+                break;
+            }
+            remaining = nanos - (System.nanoTime() - start);
+        }
+        return remaining;
+    }
+
+    /**
+     * Waits in the LIFO stack until signaled, interrupted or, if timed, the timeout elapses. Equivalent to awaiting on
+     * notEmpty: waitLock is released while waiting and held again on return.
+     *
+     * @return if timed, an estimate of the remaining time, in nanoseconds
+     */
+    private long awaitLifo(boolean timed, long nanos) throws InterruptedException {
+        // assert waitLock.isHeldByCurrentThread();
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        long deadline = timed ? System.nanoTime() + nanos : 0;
+        Waiter waiter = new Waiter(Thread.currentThread());
+        waiter.next = lifoWaiters;
+        lifoWaiters = waiter;
+        boolean interrupted = false;
+        waitLock.unlock();
+        try {
+            while (!waiter.signaled) {
+                if (Thread.interrupted()) {
+                    interrupted = true;
+                    break;
+                }
+                if (timed) {
+                    nanos = deadline - System.nanoTime();
+                    if (nanos <= 0) {
+                        break;
+                    }
+                    LockSupport.parkNanos(this, nanos);
+                } else {
+                    LockSupport.park(this);
+                }
+            }
+        } finally {
+            waitLock.lock();
+        }
+        if (!waiter.signaled) {
+            removeLifoWaiter(waiter);
+        } else if (interrupted) {
+            // signaled while giving up, do not lose the signal
+            signalWaiter();
+        }
+        if (interrupted) {
+            throw new InterruptedException();
+        }
+        return timed ? deadline - System.nanoTime() : 0;
+    }
+
+    private void removeLifoWaiter(Waiter waiter) {
+        // assert waitLock.isHeldByCurrentThread();
+        Waiter prev = null;
+        for (Waiter w = lifoWaiters; w != null; prev = w, w = w.next) {
+            if (w == waiter) {
+                if (prev == null) {
+                    lifoWaiters = w.next;
+                } else {
+                    prev.next = w.next;
+                }
+                return;
+            }
+        }
+    }
+
+    /** Wakes up a waiting take, the most recent in the LIFO stack if there are any, or one waiting on notEmpty. */
+    private void signalWaiter() {
+        // assert waitLock.isHeldByCurrentThread();
+        Waiter waiter = lifoWaiters;
+        if (waiter == null) {
+            notEmpty.signal();
+        } else {
+            lifoWaiters = waiter.next;
+            waiter.next = null;
+            waiter.signaled = true;
+            LockSupport.unpark(waiter.thread);
+        }
+    }
+
+    /*
+     * Profiled counterparts of the waitLock operations. The waitLock is never held across calls, so the acquisition
+     * time is kept by the caller instead of in a field. Time spent waiting on notEmpty is left out of the hold time.
+     */
+
+    private long lockWait(LockProfile.Recorder profiler, LockProfile.Site site) {
+        if (profiler == null) {
+            waitLock.lock();
+            return 0;
+        } else {
+            long start = System.nanoTime();
+            waitLock.lock();
+            long now = System.nanoTime();
+            profiler.recordWait(LockProfile.Lock.WAIT, site, now - start);
+            return now;
+        }
+    }
+
+    private void recordWaitHold(LockProfile.Recorder profiler, LockProfile.Site site, long acquiredNanos) {
+        if (profiler != null) {
+            profiler.recordHold(LockProfile.Lock.WAIT, site, System.nanoTime() - acquiredNanos);
+        }
+    }
+
+    private void unlockWait(LockProfile.Recorder profiler, LockProfile.Site site, long acquiredNanos) {
+        recordWaitHold(profiler, site, acquiredNanos);
+        waitLock.unlock();
+    }
+
+    /**
+     * Signals a waiting take. Called from put/offer when the multi-queue stops being empty, and from takes that leave
+     * elements behind, after releasing the takeLock. Does nothing if no take is waiting.
+     */
+    private void signalNotEmpty() {
+        if (notEmptyWaiters == 0) {
+            return;
+        }
+        LockProfile.Recorder profiler = lockProfiler;
+        long acquiredNanos = lockWait(profiler, LockProfile.Site.SIGNAL_NOT_EMPTY);
+        try {
+            signalWaiter();
+        } finally {
+            unlockWait(profiler, LockProfile.Site.SIGNAL_NOT_EMPTY, acquiredNanos);
+        }
+    }
+
+    /**
+     * Waits a little for a lock-free insertion in progress: busy-spins at first, and then yields the processor, in case
+     * the producer was descheduled before completing it.
+     *
+     * @param spins how many times the caller already waited
+     */
+    private static void backOff(int spins) {
+        if (spins < SPINS_BEFORE_YIELD) {
+            SpinWait.onSpinWait();
+        } else {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Called by consumers after taking the last element of a sub-queue, removes it from the ready ring and from
+     * readyCount.
+     *
+     * @return the number of sub-queues that still have elements
+     */
+    private int tookLast(SubQueue subQueue) {
+        // assert subQueue.priorityGroup.takeLock.isHeldByCurrentThread();
+        PriorityGroup priorityGroup = subQueue.priorityGroup;
+        priorityGroup.unlinkReady(subQueue);
+        return priorityGroup.decrementReady();
+    }
+
+    /**
+     * Takes an element, if there is any, combining the take with those of other consumers: the request is published,
+     * and served either by the current holder of the takeLock, or by this thread if it acquires the lock. Interrupts
+     * received while waiting to be served are kept for the caller, as the request cannot be withdrawn.
+     *
+     * @return the element, or null if there were no elements when the request was served
+     */
+    private E combinedPoll(LockProfile.Site site) {
+        TakeRequest<E> request = new TakeRequest<>(Thread.currentThread());
+        TakeRequest<E> top;
+        do {
+            top = takeRequests.get();
+            request.next = top;
+        } while (!takeRequests.compareAndSet(top, request));
+        boolean interrupted = false;
+        while (!request.done) {
+            if (takeLock.tryLock(site)) {
+                int remaining;
+                try {
+                    combineTakes();
+                    remaining = readyCount.get();
+                } finally {
+                    takeLock.unlock(site);
+                }
+                if (remaining > 0) {
+                    // multi-queue still has elements, notify next poller
+                    signalNotEmpty();
+                }
+            } else {
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return request.element;
+    }
+
+    /** Serves the published take requests, until there are none left, or a maximum number was served. */
+    private void combineTakes() {
+        // assert takeLock.isHeldByCurrentThread();
+        Thread current = Thread.currentThread();
+        int served = 0;
+        TakeRequest<E> request;
+        while (served < MAX_COMBINED_TAKES && (request = takeRequests.getAndSet(null)) != null) {
+            while (request != null) {
+                TakeRequest<E> next = request.next;
+                request.next = null;
+                if (readyCount.get() > 0) {
+                    takeLock.linkPendingSubQueues();
+                    SubQueue subQueue = takeLock.nextSubQueue();
+                    request.element = subQueue.dequeue();
+                    int oldSize = subQueue.count.getAndDecrement();
+                    totalCount.decrement();
+                    if (oldSize == 1) {
+                        tookLast(subQueue);
+                    }
+                    if (oldSize == subQueue.capacity) {
+                        // we just took an element from a full queue, notify any blocked offers once unlocked
+                        subQueue.deferSignalNotFull();
+                    }
+                }
+                Thread requester = request.thread;
+                request.done = true;
+                if (requester != current) {
+                    LockSupport.unpark(requester);
+                }
+                served += 1;
+                request = next;
+            }
+        }
+    }
+
+    private E combinedPoll(long timeout, TimeUnit unit) throws InterruptedException {
+        long remaining = unit.toNanos(timeout);
+        for (; ; ) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            E element = combinedPoll(LockProfile.Site.POLL);
+            if (element != null || remaining <= 0) {
+                return element;
+            }
+            remaining = waitNotEmptyNanos(remaining, LockProfile.Site.POLL);
+        }
+    }
+
+    private E combinedTake() throws InterruptedException {
+        for (; ; ) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            E element = combinedPoll(LockProfile.Site.TAKE);
+            if (element != null) {
+                return element;
+            }
+            waitNotEmpty(LockProfile.Site.TAKE);
+        }
+    }
+
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        if (takeCombining) {
+            return combinedPoll(timeout, unit);
+        }
+        TakeLock lock = lockTakeReady(unit.toNanos(timeout), LockProfile.Site.POLL);
+        if (lock == null) {
+            return null;
+        }
+        return dequeueNextAndUnlock(lock, null, LockProfile.Site.POLL);
+    }
+
+    public E take() throws InterruptedException {
+        if (takeCombining) {
+            return combinedTake();
+        }
+        TakeLock lock = lockTakeReady(LockProfile.Site.TAKE);
+        return dequeueNextAndUnlock(lock, null, LockProfile.Site.TAKE);
+    }
+
+    public E poll() {
+        if (readyCount.get() <= 0) {
+            // nothing to take, do not contend for takeLock (or not yet, see isEmpty())
+            return null;
+        }
+        if (takeCombining) {
+            return combinedPoll(LockProfile.Site.POLL);
+        }
+        TakeLock lock = lockTakeIfReady(LockProfile.Site.POLL);
+        if (lock == null) {
+            return null;
+        }
+        return dequeueNextAndUnlock(lock, null, LockProfile.Site.POLL);
+    }
+
+    /**
+     * Retrieves and removes the next element, waiting if necessary until an element becomes available, like {@link
+     * #take()}, and stores it in the given holder along with the key of the sub-queue it was taken from. The holder
+     * can be reused across calls, so that knowing the origin of each element does not require wrapping it.
+     *
+     * @param entry the holder to store the element and its key into
+     * @throws NullPointerException if the specified holder is null
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void takeEntry(Entry<K, E> entry) throws InterruptedException {
+        if (entry == null) {
+            throw new NullPointerException();
+        }
+        TakeLock lock = lockTakeReady(LockProfile.Site.TAKE);
+        dequeueNextAndUnlock(lock, entry, LockProfile.Site.TAKE);
+    }
+
+    /**
+     * Retrieves and removes the next element, if there is any, like {@link #poll()}, and stores it in the given holder
+     * along with the key of the sub-queue it was taken from. See {@link #takeEntry(Entry)}.
+     *
+     * @param entry the holder to store the element and its key into
+     * @return {@code true} if an element was taken, {@code false} if this queue is empty, in which case the holder is
+     *     left unchanged
+     * @throws NullPointerException if the specified holder is null
+     */
+    public boolean pollEntry(Entry<K, E> entry) {
+        if (entry == null) {
+            throw new NullPointerException();
+        }
+        if (readyCount.get() <= 0) {
+            // nothing to take, do not contend for takeLock
+            return false;
+        }
+        TakeLock lock = lockTakeIfReady(LockProfile.Site.POLL);
+        if (lock == null) {
+            return false;
+        }
+        dequeueNextAndUnlock(lock, entry, LockProfile.Site.POLL);
+        return true;
+    }
+
+    /**
+     * Retrieves and removes the next element, waiting up to the specified wait time if necessary for an element to
+     * become available, like {@link #poll(long, TimeUnit)}, and stores it in the given holder along with the key of the
+     * sub-queue it was taken from. See {@link #takeEntry(Entry)}.
+     *
+     * @param entry the holder to store the element and its key into
+     * @param timeout how long to wait before giving up, in units of {@code unit}
+     * @param unit a {@code TimeUnit} determining how to interpret the {@code timeout} parameter
+     * @return {@code true} if an element was taken, {@code false} if the specified waiting time elapses before an
+     *     element is available, in which case the holder is left unchanged
+     * @throws NullPointerException if the specified holder is null
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean pollEntry(Entry<K, E> entry, long timeout, TimeUnit unit) throws InterruptedException {
+        if (entry == null) {
+            throw new NullPointerException();
+        }
+        TakeLock lock = lockTakeReady(unit.toNanos(timeout), LockProfile.Site.POLL);
+        if (lock == null) {
+            return false;
+        }
+        dequeueNextAndUnlock(lock, entry, LockProfile.Site.POLL);
+        return true;
+    }
+
+    /**
+     * Acquires the take lock to take the next element from, waiting until there is an element to take: takeLock, or,
+     * if it is split, the lock of the priority group to take from.
+     *
+     * <p>Returns holding the lock, which is released if an exception is thrown.
+     */
+    private TakeLock lockTakeReady(LockProfile.Site site) throws InterruptedException {
+        if (splitTakeLock) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            TakeLock lock;
+            while ((lock = lockReadyGroup(site)) == null) {
+                waitNotEmpty(site);
+            }
+            return lock;
+        }
+        takeLock.lockInterruptibly(site);
+        boolean ready = false;
+        try {
+            while (readyCount.get() <= 0) {
+                awaitNotEmpty(site);
+            }
+            ready = true;
+            return takeLock;
+        } finally {
+            if (!ready) {
+                takeLock.unlock(site);
+            }
+        }
+    }
+
+    /**
+     * Acquires the take lock to take the next element from, waiting up to the given time until there is an element to
+     * take. See {@link #lockTakeReady(LockProfile.Site)}.
+     *
+     * @return the lock, held, if there is an element, or null, not holding any, if the time elapsed before
+     */
+    private TakeLock lockTakeReady(long nanos, LockProfile.Site site) throws InterruptedException {
+        if (splitTakeLock) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            TakeLock lock;
+            while ((lock = lockReadyGroup(site)) == null) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = waitNotEmptyNanos(nanos, site);
+            }
+            return lock;
+        }
+        takeLock.lockInterruptibly(site);
+        boolean ready = false;
+        try {
+            while (readyCount.get() <= 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = awaitNotEmptyNanos(nanos, site);
+            }
+            ready = true;
+            return takeLock;
+        } finally {
+            if (!ready) {
+                takeLock.unlock(site);
+            }
+        }
+    }
+
+    /**
+     * Acquires the take lock to take the next element from, if there is an element to take, without waiting for one.
+     * See {@link #lockTakeReady(LockProfile.Site)}.
+     *
+     * @return the lock, held, if there is an element, or null, not holding any, otherwise
+     */
+    private TakeLock lockTakeIfReady(LockProfile.Site site) {
+        if (splitTakeLock) {
+            return lockReadyGroup(site);
+        }
+        takeLock.lock(site);
+        if (readyCount.get() <= 0) {
+            takeLock.unlock(site);
+            return null;
+        }
+        return takeLock;
+    }
+
+    /**
+     * Acquires the lock of the highest priority group that has ready sub-queues, if the take lock is split. The groups
+     * are scanned without locking, so once the lock is held, the group is checked again, and so is that no group of
+     * higher priority became ready in the meantime, which would have to be served first.
+     *
+     * @return the lock of the group, held, or null, not holding any, if no group had ready sub-queues
+     */
+    private TakeLock lockReadyGroup(LockProfile.Site site) {
+        for (; ; ) {
+            PriorityGroup group = firstReadyGroup();
+            if (group == null) {
+                return null;
+            }
+            group.takeLock.lock(site);
+            if (group.readySubQueues.get() > 0 && firstReadyGroup() == group) {
+                return group.takeLock;
+            }
+            group.takeLock.unlock(site);
+        }
+    }
+
+    /** Returns the highest priority group that has ready sub-queues, or null. Only if the take lock is split. */
+    private PriorityGroup firstReadyGroup() {
+        ArrayList<PriorityGroup> groups = priorityGroupsSnapshot;
+        for (int i = 0; i < groups.size(); i++) {
+            PriorityGroup group = groups.get(i);
+            if (group.readySubQueues.get() > 0) {
+                return group;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Takes the next element, holding the given take lock with at least one ready sub-queue, releases the lock, and
+     * then wakes up the next consumer and a producer, if needed. This is the single-element critical section of every
+     * take and poll that is not combined.
+     *
+     * @param lock the take lock held, see lockTakeReady()
+     * @param entry where to report the element and the key of its sub-queue, or null
+     * @return the element
+     */
+    private E dequeueNextAndUnlock(TakeLock lock, Entry<K, E> entry, LockProfile.Site site) {
+        // assert lock.isHeldByCurrentThread();
+        // assert readyCount.get() > 0;
+        SubQueue subQueue;
+        E element;
+        int oldSize;
+        boolean moreReady;
+        try {
+            // at this point we know there is an element
+            lock.linkPendingSubQueues();
+            subQueue = lock.nextSubQueue();
+            element = subQueue.dequeue();
+            oldSize = subQueue.count.getAndDecrement();
+            totalCount.decrement();
+            moreReady = oldSize > 1 || tookLast(subQueue) > 0;
+        } finally {
+            lock.unlock(site);
+        }
+        if (moreReady) {
+            // multi-queue still has elements, notify next poller
+            signalNotEmpty();
+        }
+        if (oldSize == subQueue.capacity) {
+            // we just took an element from a full queue, notify any blocked offers
+            subQueue.signalNotFull();
+        }
+        if (entry != null) {
+            entry.key = subQueue.key;
+            entry.element = element;
+        }
+        return element;
+    }
+
+    /**
+     * Retrieves and removes up to the given number of elements from the next sub-queue to be served, waiting if
+     * necessary until an element becomes available, and adds them to the given collection. Unlike {@link
+     * #drainTo(Collection, int)}, which interleaves the sub-queues, all the elements are taken from the same sub-queue,
+     * selected as {@link #take()} would, and are consecutive in it. This suits consumers that process elements in
+     * batches per key. Elements are taken in a single acquisition of the take lock.
+     *
+     * @param c the collection to transfer elements into
+     * @param maxElements the maximum number of elements to transfer
+     * @return the key of the sub-queue the elements were taken from
+     * @throws NullPointerException if the specified collection is null
+     * @throws IllegalArgumentException if maxElements is not positive
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public K takeBatchFromNext(Collection<? super E> c, int maxElements) throws InterruptedException {
+        checkBatch(c, maxElements);
+        TakeLock lock = lockTakeReady(LockProfile.Site.TAKE);
+        return takeBatchAndUnlock(lock, c, maxElements, LockProfile.Site.TAKE);
+    }
+
+    /**
+     * Retrieves and removes up to the given number of elements from the next sub-queue to be served, waiting up to
+     * the specified wait time if necessary for an element to become available, and adds them to the given collection.
+     * See {@link #takeBatchFromNext(Collection, int)}.
+     *
+     * @param c the collection to transfer elements into
+     * @param maxElements the maximum number of elements to transfer
+     * @param timeout how long to wait before giving up, in units of {@code unit}
+     * @param unit a {@code TimeUnit} determining how to interpret the {@code timeout} parameter
+     * @return the key of the sub-queue the elements were taken from, or {@code null} if the specified waiting time
+     *     elapses before an element is available
+     * @throws NullPointerException if the specified collection is null
+     * @throws IllegalArgumentException if maxElements is not positive
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public K pollBatchFromNext(Collection<? super E> c, int maxElements, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        checkBatch(c, maxElements);
+        TakeLock lock = lockTakeReady(unit.toNanos(timeout), LockProfile.Site.POLL);
+        if (lock == null) {
+            return null;
+        }
+        return takeBatchAndUnlock(lock, c, maxElements, LockProfile.Site.POLL);
+    }
+
+    private static void checkBatch(Collection<?> c, int maxElements) {
+        if (c == null) {
+            throw new NullPointerException();
+        }
+        if (maxElements <= 0) {
+            throw new IllegalArgumentException();
+        }
+    }
+
+    /**
+     * Takes up to maxElements consecutive elements from the next sub-queue, holding the given take lock with at least
+     * one ready sub-queue, releases the lock, and then wakes up the next consumer, if needed. Producers are signaled
+     * when the lock is released, see dequeueTo().
+     *
+     * @return the key of the sub-queue
+     */
+    private K takeBatchAndUnlock(TakeLock lock, Collection<? super E> c, int maxElements, LockProfile.Site site) {
+        // assert lock.isHeldByCurrentThread();
+        // assert readyCount.get() > 0;
+        SubQueue subQueue;
+        boolean moreReady;
+        try {
+            // at this point we know there is an element
+            lock.linkPendingSubQueues();
+            subQueue = lock.nextSubQueue();
+            // wait for the first element only, the batch ends at any later one that is still being linked
+            subQueue.first();
+            subQueue.dequeueTo(c, maxElements);
+            moreReady = readyCount.get() > 0;
+        } finally {
+            lock.unlock(site);
+        }
+        if (moreReady) {
+            // multi-queue still has elements, notify next poller
+            signalNotEmpty();
+        }
+        return subQueue.key;
+    }
+
+    public E peek() {
+        if (readyCount.get() <= 0) {
+            // nothing to take, do not contend for takeLock
+            return null;
+        }
+        TakeLock lock = lockTakeIfReady(LockProfile.Site.PEEK);
+        if (lock == null) {
+            return null;
+        }
+        try {
+            lock.linkPendingSubQueues();
+            return lock.peek();
+        } finally {
+            lock.unlock(LockProfile.Site.PEEK);
+        }
+    }
+
+    /**
+     * Returns the total size of this multi-queue, that is, the sum of the sizes of all the enabled
+     * sub-queues.
+     *
+     * <p>The total is kept in a striped counter, which producers and consumers update without contending with each
+     * other, and adds up its stripes without locking, so while the multi-queue is in use the result is only an
+     * estimate.
+     *
+     * @return the total size of this multi-queue
+     */
+    public int totalSize() {
+        // the sum can be transiently negative, as consumers can take an element before its producer counts it
+        return (int) Math.max(0, Math.min(totalCount.sum(), Integer.MAX_VALUE));
+    }
+
+    /**
+     * Returns whether this multi-queue is empty, that is, whether there is any element ready to be
+     * taken from the head.
+     *
+     * <p>A sub-queue has elements to take once the insertion that made it non-empty completes. With lock-free
+     * insertions (see {@link #setLockFreePuts(boolean)}), other producers of the same sub-queue can complete theirs
+     * before that one, and until it completes, their elements are counted in the sizes but not seen by this method,
+     * {@code poll()}, {@code peek()} or {@code drainTo()}, as if their insertions were still in progress.
+     *
+     * @return whether this multi-queue is empty.
+     */
+    public boolean isEmpty() {
+        return readyCount.get() <= 0;
+    }
+
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == null) {
+            throw new NullPointerException();
+        }
+        if (maxElements <= 0 || readyCount.get() <= 0) {
+            return 0;
+        }
+        int drained = 0;
+        int quantum = drainQuantum;
+        if (splitTakeLock) {
+            // one group at a time, in priority order
+            ArrayList<PriorityGroup> groups = priorityGroupsSnapshot;
+            for (int i = 0; i < groups.size() && drained < maxElements; i++) {
+                PriorityGroup group = groups.get(i);
+                if (group.readySubQueues.get() > 0) {
+                    group.takeLock.lock(LockProfile.Site.DRAIN_TO);
+                    try {
+                        group.takeLock.linkPendingSubQueues();
+                        drained += group.drainTo(c, group.drainLimit(maxElements - drained), quantum);
+                    } finally {
+                        group.takeLock.unlock(LockProfile.Site.DRAIN_TO);
+                    }
+                }
+            }
+            QueueEvents.drained(maxElements, drained);
+            return drained;
+        }
+        takeLock.lock(LockProfile.Site.DRAIN_TO);
+        try {
+            takeLock.linkPendingSubQueues();
+            int n = drainLimit(maxElements);
+            // ordered iteration, begin with lower index (highest priority)
+            for (int i = readyGroups.nextSetBit(0); i >= 0 && drained < n; i = readyGroups.nextSetBit(i + 1)) {
+                drained += priorityGroups.get(i).drainTo(c, n - drained, quantum);
+            }
+        } finally {
+            takeLock.unlock(LockProfile.Site.DRAIN_TO);
+        }
+        QueueEvents.drained(maxElements, drained);
+        return drained;
+    }
+
+    /**
+     * Removes at most the given number of available elements from this multi-queue and stores them in the given array,
+     * starting at the given offset, in the same order as {@link #drainTo(Collection, int)}. This avoids going through
+     * the {@link Collection} interface for each element, and lets consumers that process elements in batches reuse the
+     * same array for every batch. At most as many elements as fit in the array after the offset are transferred. The
+     * rest of the array is left unchanged.
+     *
+     * @param target the array to store elements into
+     * @param offset the position of the first element in the array
+     * @param maxElements the maximum number of elements to transfer
+     * @return the number of elements transferred, stored in {@code target[offset]} to {@code target[offset + n - 1]}
+     * @throws NullPointerException if the specified array is null
+     * @throws IndexOutOfBoundsException if offset is negative or greater than the length of the array
+     * @throws ArrayStoreException if an element cannot be stored in the array because of its runtime type
+     */
+    public int drainTo(Object[] target, int offset, int maxElements) {
+        if (target == null) {
+            throw new NullPointerException();
+        }
+        if (offset < 0 || offset > target.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        maxElements = Math.min(maxElements, target.length - offset);
+        if (maxElements <= 0 || readyCount.get() <= 0) {
+            return 0;
+        }
+        int drained = 0;
+        int quantum = drainQuantum;
+        if (splitTakeLock) {
+            // one group at a time, in priority order
+            ArrayList<PriorityGroup> groups = priorityGroupsSnapshot;
+            for (int i = 0; i < groups.size() && drained < maxElements; i++) {
+                PriorityGroup group = groups.get(i);
+                if (group.readySubQueues.get() > 0) {
+                    group.takeLock.lock(LockProfile.Site.DRAIN_TO);
+                    try {
+                        group.takeLock.linkPendingSubQueues();
+                        int n = group.drainLimit(maxElements - drained);
+                        drained += group.drainTo(target, offset + drained, n, quantum);
+                    } finally {
+                        group.takeLock.unlock(LockProfile.Site.DRAIN_TO);
+                    }
+                }
+            }
+            QueueEvents.drained(maxElements, drained);
+            return drained;
+        }
+        takeLock.lock(LockProfile.Site.DRAIN_TO);
+        try {
+            takeLock.linkPendingSubQueues();
+            int n = drainLimit(maxElements);
+            // ordered iteration, begin with lower index (highest priority)
+            for (int i = readyGroups.nextSetBit(0); i >= 0 && drained < n; i = readyGroups.nextSetBit(i + 1)) {
+                drained += priorityGroups.get(i).drainTo(target, offset + drained, n - drained, quantum);
+            }
+        } finally {
+            takeLock.unlock(LockProfile.Site.DRAIN_TO);
+        }
+        QueueEvents.drained(maxElements, drained);
+        return drained;
+    }
+
+    /** Returns how many elements a drain of at most maxElements takes. */
+    private int drainLimit(int maxElements) {
+        // assert takeLock.isHeldByCurrentThread();
+        int n = maxElements;
+        if (n > readyCount.get()) {
+            // there is at least one element per ready sub-queue, count them only if more can be needed, also so that
+            // the drain ends even if producers keep filling the sub-queues
+            long readySize = 0;
+            for (int i = readyGroups.nextSetBit(0); i >= 0 && readySize < n; i = readyGroups.nextSetBit(i + 1)) {
+                readySize += priorityGroups.get(i).readySize();
+            }
+            n = (int) Math.min(n, readySize);
+        }
+        return n;
+    }
+
+    /**
+     * Removes elements from this multi-queue and adds them to the given collection, like {@link #drainTo(Collection,
+     * int)}, but waiting if necessary for more elements: it returns as soon as at least {@code minElements} elements
+     * were transferred, or the timeout elapses. Elements are transferred in priority order, as many as are available
+     * (up to {@code maxElements}) each time the take lock is acquired, so a batch that is already available is
+     * transferred at once.
+     *
+     * <p>If interrupted while waiting, the elements already transferred stay in the collection.
+     *
+     * @param c the collection to transfer elements into
+     * @param minElements the number of elements to wait for
+     * @param maxElements the maximum number of elements to transfer
+     * @param timeout how long to wait before giving up, in units of {@code unit}
+     * @param unit a {@code TimeUnit} determining how to interpret the {@code timeout} parameter
+     * @return the number of elements transferred, which can be less than {@code minElements} if the timeout elapsed
+     * @throws NullPointerException if the specified collection is null
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public int drainTo(Collection<? super E> c, int minElements, int maxElements, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        if (c == null) {
+            throw new NullPointerException();
+        }
+        long nanos = unit.toNanos(timeout);
+        long deadline = System.nanoTime() + nanos;
+        int drained = 0;
+        boolean waited = false;
+        try {
+            for (; ; ) {
+                drained += drainTo(c, maxElements - drained);
+                if (drained >= minElements || drained >= maxElements) {
+                    return drained;
+                }
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                nanos = deadline - System.nanoTime();
+                if (nanos <= 0) {
+                    return drained;
+                }
+                waited = true;
+                waitNotEmptyNanos(nanos, LockProfile.Site.DRAIN_TO);
+            }
+        } finally {
+            if (waited && readyCount.get() > 0) {
+                // this thread may have consumed a signal while waiting, pass it on if elements were left behind
+                signalNotEmpty();
+            }
+        }
+    }
+
+    /**
+     * Returns a snapshot of the activity counters of all the sub-queues currently in this multi-queue, added together.
+     * Counters of sub-queues that were removed are not included. Counters are only kept while enabled, see {@link
+     * #setStatsEnabled(boolean)}.
+     *
+     * @return the sum of the counters of all sub-queues
+     * @see SubQueue#stats()
+     */
+    public QueueStats stats() {
+        QueueStats stats = new QueueStats(0, 0, 0, 0, 0, 0);
+        for (SubQueue subQueue : subQueues.values()) {
+            stats = stats.plus(subQueue.stats());
+        }
+        return stats;
+    }
+
+    /**
+     * Counts the priority groups currently registered in {@link LinkedBlockingMultiQueue}. Suitable
+     * for debugging and testing.
+     *
+     * @return the number of priority groups currently registered
+     */
+    public int getPriorityGroupsCount() {
+        return priorityGroups.size();
+    }
+
+    /**
+     * Represent a sub-queue inside a multi-queue. Instances of this class are just like any blocking
+     * queue except that elements cannot be taken from their heads.
+     */
+    public class SubQueue extends AbstractOfferable<E> {
+
+        private final K key;
+        private final int capacity;
+        /** Null once removed from the multi-queue. Written holding both locks */
+        private PriorityGroup priorityGroup;
+
+        SubQueue(K key, int capacity) {
+            if (capacity <= 0) throw new IllegalArgumentException();
             this.key = key;
             this.capacity = capacity;
         }
@@ -489,8 +2021,47 @@ public class LinkedBlockingMultiQueue<K, E> extends AbstractPollable<E> {
         private final ReentrantLock putLock = new ReentrantLock();
         private final Condition notFull = putLock.newCondition();
 
+        /** Number of puts waiting on notFull. Written under putLock, read without it to skip signaling */
+        private volatile int notFullWaiters = 0;
+
+        /** Profiler of the current putLock acquisition, null if not profiled. Guarded by putLock */
+        private LockProfile.Recorder putLockProfiler = null;
+
+        /** When putLock was acquired, if profiled. Guarded by putLock */
+        private long putLockAcquiredNanos;
+
+        /*
+         * The following fields are updated with the updaters declared at the beginning of the class, and so they
+         * cannot be private.
+         */
+
+        /** Number of lock-free insertions in progress, see the comment at the beginning of the class */
+        volatile int lockFreePutsInFlight = 0;
+
+        /** Top of the stack of insertions that producers published to be served by the holder of putLock */
+        volatile PutRequest<E> putRequests = null;
+
         private final AtomicInteger count = new AtomicInteger();
-        private boolean enabled = true;
+
+        /** Written holding both locks, volatile so that it can be read without any */
+        private volatile boolean enabled = true;
+
+        /** Neighbors in the ready ring of the priority group, null if not in it. Guarded by takeLock */
+        private SubQueue readyNext = null;
+
+        private SubQueue readyPrev = null;
+
+        /** Whether this sub-queue is in the pending stack, or about to be pushed to it: 1 if it is, 0 if not */
+        volatile int pending = 0;
+
+        /** Next sub-queue in the pending stack. Guarded by the pending flag */
+        private SubQueue pendingNext = null;
+
+        /** Activity counters being recorded, see stats(); null if they are disabled */
+        private volatile Counters counters = null;
+
+        /** Last activity counters recorded, kept after they are disabled */
+        private volatile Counters lastCounters = null;
 
         public int remainingCapacity() {
             return capacity - count.get();
@@ -499,14 +2070,17 @@ public class LinkedBlockingMultiQueue<K, E> extends AbstractPollable<E> {
         /** Head of linked list. Invariant: head.item == null */
         private Node<E> head = new Node<>(null);
 
-        /** Tail of linked list. Invariant: last.next == null */
-        private Node<E> last = head;
+        /**
+         * Tail of linked list. Invariant: last.next == null, except during lock-free insertions, in which the new tail
+         * is swapped in before being linked from the previous one
+         */
+        volatile Node<E> last = head;
 
         /**
          * Atomically removes all the elements from this queue. The queue will be empty after this call returns.
          */
         public void clear() {
-            fullyLock();
+            fullyLock(LockProfile.Site.REMOVE);
             try {
                 Node<E> h = head;
                 Node<E> p = h.next;
@@ -521,11 +2095,15 @@ public class LinkedBlockingMultiQueue<K, E> extends AbstractPollable<E> {
                 if (oldCapacity == capacity) {
                     notFull.signal();
                 }
-                if (enabled) {
-                    totalCount.getAndAdd(-oldCapacity);
+                if (counted() && oldCapacity > 0) {
+                    totalCount.add(-oldCapacity);
+                    priorityGroup.decrementReady();
+                }
+                if (priorityGroup != null) {
+                    priorityGroup.unlinkReady(this);
                 }
             } finally {
-                fullyUnlock();
+                fullyUnlock(LockProfile.Site.REMOVE);
             }
         }
 
@@ -537,7 +2115,7 @@ public class LinkedBlockingMultiQueue<K, E> extends AbstractPollable<E> {
          * @param status true to enable, false to disable
          */
         public void enable(boolean status) {
-            fullyLock();
+            fullyLock(LockProfile.Site.ENABLE);
             try {
                 boolean notChanged = status == enabled;
                 if (notChanged) {
@@ -547,15 +2125,24 @@ public class LinkedBlockingMultiQueue<K, E> extends AbstractPollable<E> {
                 if (status) {
                     // potentially unblock waiting polls
                     int c = count.get();
+                    if (c > 0 && counted()) {
+                        priorityGroup.linkReady(this);
+                        totalCount.add(c);
+                        priorityGroup.incrementReady();
+                        signalNotEmpty();
+                    }
+                } else if (priorityGroup != null) {
+                    // was counted, as it is still in the multi-queue
+                    priorityGroup.unlinkReady(this);
+                    int c = count.get();
                     if (c > 0) {
-                        totalCount.getAndAdd(c);
-                        notEmpty.signal();
+                        totalCount.add(-c);
+                        priorityGroup.decrementReady();
                     }
-                } else {
-                    totalCount.getAndAdd(-count.get());
                 }
+                QueueEvents.subQueueEnabled(key, status, count.get());
             } finally {
-                fullyUnlock();
+                fullyUnlock(LockProfile.Site.ENABLE);
             }
         }
 
@@ -565,26 +2152,154 @@ public class LinkedBlockingMultiQueue<K, E> extends AbstractPollable<E> {
          * @return true is this sub-queue is enabled, false if is disabled.
          */
         public boolean isEnabled() {
-            takeLock.lock();
-            try {
-                return enabled;
-            } finally {
-                takeLock.unlock();
-            }
+            return enabled;
+        }
+
+        /**
+         * Whether the elements of this sub-queue are counted in readyCount and totalCount, which they are while it is
+         * enabled and in the multi-queue. Both conditions change holding both locks, so either is enough to read it
+         * (lock-free producers are excluded by the putLock too, see awaitLockFreePuts()).
+         */
+        private boolean counted() {
+            return enabled && priorityGroup != null;
         }
 
+        /** Signals a waiting put. Called from takes that leave space behind. Does nothing if no put is waiting. */
         private void signalNotFull() {
-            putLock.lock();
+            if (notFullWaiters == 0) {
+                return;
+            }
+            lockPut(LockProfile.Site.SIGNAL_NOT_FULL);
             try {
                 notFull.signal();
             } finally {
-                putLock.unlock();
+                unlockPut(LockProfile.Site.SIGNAL_NOT_FULL);
+            }
+        }
+
+        /**
+         * Arranges for a waiting put to be signaled when the take lock is released, so that consumers do not acquire
+         * putLock while holding it. Does nothing if no put is waiting, see signalNotFull().
+         */
+        private void deferSignalNotFull() {
+            // assert priorityGroup.takeLock.isHeldByCurrentThread();
+            if (notFullWaiters == 0) {
+                return;
             }
+            priorityGroup.takeLock.deferSignalNotFull(this);
+        }
+
+        /** Creates a node for a new element, timestamped if sojourn tracking is enabled. */
+        private Node<E> newNode(E e) {
+            return sojournSampling > 0 ? new TimedNode<>(e, System.nanoTime()) : new Node<>(e);
         }
 
         private void enqueue(Node<E> node) {
-            last.next = node;
-            last = node;
+            // assert putLock.isHeldByCurrentThread();
+            swapLast(node).next = node;
+        }
+
+        /** Makes the given node the tail, and returns the previous one, which still has to link it. */
+        @SuppressWarnings("unchecked")
+        private Node<E> swapLast(Node<E> node) {
+            return LAST.getAndSet(this, node);
+        }
+
+        /**
+         * Pushes this sub-queue to the pending stack of its take lock, so that consumers link it to its ready ring.
+         * Called when the count of an enabled sub-queue goes from zero to one, before updating readyCount.
+         */
+        private void pushPending() {
+            // assert putLock.isHeldByCurrentThread();
+            if (PENDING.compareAndSet(this, 0, 1)) {
+                AtomicReference<SubQueue> pendingSubQueues = priorityGroup.takeLock.pendingSubQueues;
+                SubQueue top;
+                do {
+                    top = pendingSubQueues.get();
+                    pendingNext = top;
+                } while (!pendingSubQueues.compareAndSet(top, this));
+            }
+        }
+
+        /** Starts recording new activity counters, or stops recording them. Called holding takeLock. */
+        private void enableStats(boolean enabled) {
+            if (enabled) {
+                Counters c = new Counters();
+                lastCounters = c;
+                counters = c;
+            } else {
+                counters = null;
+            }
+        }
+
+        /**
+         * Updates the enqueue-side counters under putLock, given the number of elements inserted and the resulting
+         * size.
+         */
+        private void recordEnqueue(int elements, int size) {
+            // assert putLock.isHeldByCurrentThread();
+            Counters c = counters;
+            if (c != null) {
+                c.enqueued += elements;
+                c.recordSize(size);
+            }
+        }
+
+        private void recordRejectedOffer() {
+            Counters c = counters;
+            if (c != null) {
+                c.rejectedOffers.increment();
+            }
+        }
+
+        private void recordTimedOutOffer() {
+            // assert putLock.isHeldByCurrentThread();
+            Counters c = counters;
+            if (c != null) {
+                c.timedOutOffers += 1;
+            }
+        }
+
+        private void recordBlocked(long nanos) {
+            // assert putLock.isHeldByCurrentThread();
+            Counters c = counters;
+            if (c != null) {
+                c.blockedNanos += nanos;
+            }
+        }
+
+        private void recordDequeue(int elements) {
+            // assert takeLock.isHeldByCurrentThread();
+            Counters c = counters;
+            if (c != null) {
+                c.dequeued += elements;
+            }
+        }
+
+        /**
+         * Returns a snapshot of the activity counters of this sub-queue. They are only kept while enabled, see {@link
+         * LinkedBlockingMultiQueue#setStatsEnabled(boolean)}; if they were never enabled, all of them are zero. The
+         * snapshot is taken holding the locks of this sub-queue, so it is consistent.
+         *
+         * @return the counters of this sub-queue
+         */
+        public QueueStats stats() {
+            Counters c = lastCounters;
+            if (c == null) {
+                return new QueueStats(0, 0, 0, 0, 0, 0);
+            }
+            fullyLock(LockProfile.Site.INSPECT);
+            try {
+                return new QueueStats(
+                        c.enqueued + c.lockFreeEnqueued.sum(),
+                        c.dequeued,
+                        c.rejectedOffers.sum(),
+                        c.timedOutOffers,
+                        c.blockedNanos,
+                        c.peakSize);
+            } finally {
+                fullyUnlock(LockProfile.Site.INSPECT);
+            }
         }
 
         /**
@@ -612,8 +2327,25 @@ public class LinkedBlockingMultiQueue<K, E> extends AbstractPollable<E> {
              * As this method never fails to insert, it is more efficient to pre-create the node outside the lock, to
              * reduce contention
              */
-            Node<E> node = new Node<>(e);
-            putLock.lockInterruptibly();
+            Node<E> node = newNode(e);
+            if (lockFreePuts && lockFreeOffer(node)) {
+                return;
+            }
+            if (putCombining) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (combinedOffer(node)) {
+                    return;
+                }
+            }
+            boolean blocked = count.get() == capacity;
+            long blockedSince = blocked ? System.nanoTime() : 0;
+            if (blocked) {
+                // without holding putLock, see setProducerWaitStrategy()
+                idleNotFull(Long.MAX_VALUE);
+            }
+            lockPutInterruptibly(LockProfile.Site.OFFER);
             try {
                 /*
                  * Note that count is used in wait guard even though it is not protected by lock. This works because
@@ -621,19 +2353,32 @@ public class LinkedBlockingMultiQueue<K, E> extends AbstractPollable<E> {
                  * waiting put) are signaled if it ever changes from capacity. Similarly for all other uses of count in
                  * other wait guards.
                  */
+                if (count.get() == capacity && !blocked) {
+                    blocked = true;
+                    blockedSince = System.nanoTime();
+                }
                 while (count.get() == capacity) {
-                    notFull.await();
+                    awaitNotFull(LockProfile.Site.OFFER);
                 }
                 enqueue(node);
-                if (count.getAndIncrement() + 1 < capacity) {
+                int c = count.getAndIncrement() + 1;
+                if (c < capacity) {
                     // queue not full after adding, notify next offerer
                     notFull.signal();
                 }
-                if (enabled) {
-                    oldSize = totalCount.getAndIncrement();
+                recordEnqueue(1, c);
+                if (counted()) {
+                    totalCount.increment();
+                    if (c == 1) {
+                        pushPending();
+                        oldSize = priorityGroup.incrementReady();
+                    }
                 }
             } finally {
-                putLock.unlock();
+                if (blocked) {
+                    recordBlocked(System.nanoTime() - blockedSince);
+                }
+                unlockPut(LockProfile.Site.OFFER);
             }
             if (oldSize == 0) {
                 // just added an element to an empty queue, notify pollers
@@ -647,22 +2392,115 @@ public class LinkedBlockingMultiQueue<K, E> extends AbstractPollable<E> {
             }
             long nanos = unit.toNanos(timeout);
             long oldSize = -1;
-            putLock.lockInterruptibly();
+            Node<E> node = null;
+            if (lockFreePuts) {
+                node = newNode(e);
+                if (lockFreeOffer(node)) {
+                    return true;
+                }
+            }
+            if (putCombining) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (node == null) {
+                    node = newNode(e);
+                }
+                if (combinedOffer(node)) {
+                    return true;
+                }
+            }
+            boolean blocked = count.get() == capacity;
+            long blockedSince = blocked ? System.nanoTime() : 0;
+            if (blocked) {
+                // without holding putLock, see setProducerWaitStrategy()
+                nanos = idleNotFull(nanos);
+            }
+            lockPutInterruptibly(LockProfile.Site.OFFER);
             try {
+                if (count.get() == capacity && !blocked) {
+                    blocked = true;
+                    blockedSince = System.nanoTime();
+                }
                 while (count.get() == capacity) {
                     if (nanos <= 0) {
+                        recordTimedOutOffer();
                         return false;
                     }
-                    nanos = notFull.awaitNanos(nanos);
+                    nanos = awaitNotFullNanos(nanos, LockProfile.Site.OFFER);
+                }
+                enqueue(node == null ? newNode(e) : node);
+                int c = count.getAndIncrement() + 1;
+                if (c < capacity) {
+                    // queue not full after adding, notify next offerer
+                    notFull.signal();
+                }
+                recordEnqueue(1, c);
+                if (counted()) {
+                    totalCount.increment();
+                    if (c == 1) {
+                        pushPending();
+                        oldSize = priorityGroup.incrementReady();
+                    }
+                }
+            } finally {
+                if (blocked) {
+                    recordBlocked(System.nanoTime() - blockedSince);
+                }
+                unlockPut(LockProfile.Site.OFFER);
+            }
+            if (oldSize == 0) {
+                // just added an element to an empty queue, notify pollers
+                signalNotEmpty();
+            }
+            return true;
+        }
+
+        public boolean offer(E e) {
+            if (e == null) {
+                throw new NullPointerException();
+            }
+            long oldSize = -1;
+            if (count.get() == capacity) {
+                recordRejectedOffer();
+                return false;
+            }
+            Node<E> node = null;
+            if (lockFreePuts) {
+                node = newNode(e);
+                if (lockFreeOffer(node)) {
+                    return true;
+                }
+            }
+            if (putCombining) {
+                if (combinedOffer(node == null ? newNode(e) : node)) {
+                    return true;
+                }
+                recordRejectedOffer();
+                return false;
+            }
+            lockPut(LockProfile.Site.OFFER);
+            try {
+                if (count.get() == capacity) {
+                    recordRejectedOffer();
+                    return false;
                 }
-                enqueue(new Node<>(e));
-                if (count.getAndIncrement() + 1 < capacity) {
+                enqueue(node == null ? newNode(e) : node);
+                int c = count.getAndIncrement() + 1;
+                if (c < capacity) {
                     // queue not full after adding, notify next offerer
                     notFull.signal();
                 }
-                if (enabled) oldSize = totalCount.getAndIncrement();
+                recordEnqueue(1, c);
+                if (counted()) {
+                    totalCount.increment();
+                    if (c == 1) {
+                        pushPending();
+                        oldSize = priorityGroup.incrementReady();
+                    }
+                }
             } finally {
-                putLock.unlock();
+                unlockPut(LockProfile.Site.OFFER);
             }
             if (oldSize == 0) {
                 // just added an element to an empty queue, notify pollers
@@ -671,27 +2509,40 @@ public class LinkedBlockingMultiQueue<K, E> extends AbstractPollable<E> {
             return true;
         }
 
-        public boolean offer(E e) {
-            if (e == null) {
-                throw new NullPointerException();
-            }
+        /**
+         * Inserts a node without locking, if there is space for it and the putLock is not held.
+         *
+         * @return whether the node was inserted, false if the caller has to fall back to the locked path
+         */
+        private boolean lockFreeOffer(Node<E> node) {
             long oldSize = -1;
-            if (count.get() == capacity) {
-                return false;
-            }
-            putLock.lock();
+            LOCK_FREE_PUTS_IN_FLIGHT.incrementAndGet(this);
             try {
-                if (count.get() == capacity) {
+                if (putLock.isLocked()) {
                     return false;
                 }
-                enqueue(new Node<>(e));
-                if (count.getAndIncrement() + 1 < capacity) {
-                    // queue not full after adding, notify next offerer
-                    notFull.signal();
+                int c;
+                do {
+                    c = count.get();
+                    if (c == capacity) {
+                        return false;
+                    }
+                } while (!count.compareAndSet(c, c + 1));
+                swapLast(node).next = node;
+                Counters stats = counters;
+                if (stats != null) {
+                    stats.lockFreeEnqueued.increment();
+                    stats.recordSize(c + 1);
+                }
+                if (counted()) {
+                    totalCount.increment();
+                    if (c == 0) {
+                        pushPending();
+                        oldSize = priorityGroup.incrementReady();
+                    }
                 }
-                if (enabled) oldSize = totalCount.getAndIncrement();
             } finally {
-                putLock.unlock();
+                LOCK_FREE_PUTS_IN_FLIGHT.decrementAndGet(this);
             }
             if (oldSize == 0) {
                 // just added an element to an empty queue, notify pollers
@@ -700,11 +2551,122 @@ public class LinkedBlockingMultiQueue<K, E> extends AbstractPollable<E> {
             return true;
         }
 
+        /**
+         * Inserts a node if there is space for it, combining the insertion with those of other producers: the request
+         * is published, and served either by the current holder of the putLock, or by this thread if it acquires the
+         * lock. Interrupts received while waiting to be served are kept for the caller, as the request cannot be
+         * withdrawn.
+         *
+         * @return whether the node was inserted, false if the sub-queue was full when the request was served
+         */
+        private boolean combinedOffer(Node<E> node) {
+            PutRequest<E> request = new PutRequest<>(node, Thread.currentThread());
+            PutRequest<E> top;
+            do {
+                top = putRequests;
+                request.next = top;
+            } while (!PUT_REQUESTS.compareAndSet(this, top, request));
+            boolean interrupted = false;
+            while (request.state == PutRequest.PENDING) {
+                if (tryLockPut(LockProfile.Site.OFFER)) {
+                    boolean becameNonEmpty;
+                    try {
+                        becameNonEmpty = combinePuts();
+                    } finally {
+                        unlockPut(LockProfile.Site.OFFER);
+                    }
+                    if (becameNonEmpty) {
+                        // just added elements to an empty queue, notify pollers
+                        signalNotEmpty();
+                    }
+                } else {
+                    LockSupport.park(this);
+                    if (Thread.interrupted()) {
+                        interrupted = true;
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return request.state == PutRequest.INSERTED;
+        }
+
+        /**
+         * Serves the published put requests, batch by batch, until there are none left or a maximum number was served.
+         * The sizes are updated once per batch, before the producers are released, so that an insertion is visible
+         * when the producer returns.
+         *
+         * @return whether the multi-queue went from empty to non-empty
+         */
+        private boolean combinePuts() {
+            // assert putLock.isHeldByCurrentThread();
+            boolean becameNonEmpty = false;
+            int served = 0;
+            PutRequest<E> batch;
+            while (served < MAX_COMBINED_PUTS && (batch = takePutRequests()) != null) {
+                // the stack has the most recent request on top, reverse it to link in order of arrival
+                PutRequest<E> reversed = null;
+                while (batch != null) {
+                    PutRequest<E> next = batch.next;
+                    batch.next = reversed;
+                    reversed = batch;
+                    batch = next;
+                }
+                int space = capacity - count.get();
+                int inserted = 0;
+                for (PutRequest<E> r = reversed; r != null; r = r.next) {
+                    if (inserted < space) {
+                        enqueue(r.node);
+                        inserted += 1;
+                    }
+                }
+                if (inserted > 0) {
+                    int c = count.addAndGet(inserted);
+                    if (c < capacity) {
+                        // queue not full after adding, notify next offerer
+                        notFull.signal();
+                    }
+                    recordEnqueue(inserted, c);
+                    if (counted()) {
+                        totalCount.add(inserted);
+                        if (c == inserted) {
+                            pushPending();
+                            if (priorityGroup.incrementReady() == 0) {
+                                becameNonEmpty = true;
+                            }
+                        }
+                    }
+                }
+                Thread current = Thread.currentThread();
+                int i = 0;
+                while (reversed != null) {
+                    PutRequest<E> r = reversed;
+                    reversed = r.next;
+                    r.next = null;
+                    Thread requester = r.thread;
+                    r.state = i < inserted ? PutRequest.INSERTED : PutRequest.FULL;
+                    if (requester != current) {
+                        LockSupport.unpark(requester);
+                    }
+                    i += 1;
+                }
+                served += i;
+            }
+            return becameNonEmpty;
+        }
+
+        /** Removes all the published put requests, and returns the top of their stack. */
+        @SuppressWarnings("unchecked")
+        private PutRequest<E> takePutRequests() {
+            return PUT_REQUESTS.getAndSet(this, null);
+        }
+
         public boolean remove(Object o) {
             if (o == null) {
                 return false;
             }
-            fullyLock();
+            fullyLock(LockProfile.Site.REMOVE);
             try {
                 for (Node<E> trail = head, p = trail.next; p != null; trail = p, p = p.next) {
                     if (o.equals(p.item)) {
@@ -714,7 +2676,7 @@ public class LinkedBlockingMultiQueue<K, E> extends AbstractPollable<E> {
                 }
                 return false;
             } finally {
-                fullyUnlock();
+                fullyUnlock(LockProfile.Site.REMOVE);
             }
         }
 
@@ -722,7 +2684,7 @@ public class LinkedBlockingMultiQueue<K, E> extends AbstractPollable<E> {
             if (o == null) {
                 return false;
             }
-            fullyLock();
+            fullyLock(LockProfile.Site.INSPECT);
             try {
                 for (Node<E> p = head.next; p != null; p = p.next) {
                     if (o.equals(p.item)) {
@@ -731,7 +2693,7 @@ public class LinkedBlockingMultiQueue<K, E> extends AbstractPollable<E> {
                 }
                 return false;
             } finally {
-                fullyUnlock();
+                fullyUnlock(LockProfile.Site.INSPECT);
             }
         }
 
@@ -746,24 +2708,221 @@ public class LinkedBlockingMultiQueue<K, E> extends AbstractPollable<E> {
             if (last == p) {
                 last = trail;
             }
-            if (count.getAndDecrement() == capacity) {
+            boolean counted = counted();
+            int oldSize = count.getAndDecrement();
+            if (counted) {
+                totalCount.decrement();
+            }
+            if (oldSize == capacity) {
                 notFull.signal();
             }
-            if (enabled) {
-                totalCount.getAndDecrement();
+            if (oldSize == 1) {
+                if (priorityGroup != null) {
+                    priorityGroup.unlinkReady(this);
+                }
+                if (counted) {
+                    priorityGroup.decrementReady();
+                }
             }
         }
 
         /** Locks to prevent both puts and takes. */
-        private void fullyLock() {
-            takeLock.lock();
-            putLock.lock();
+        private void fullyLock(LockProfile.Site site) {
+            lockTake(site);
+            lockPut(site);
         }
 
         /** Unlocks to allow both puts and takes. */
-        private void fullyUnlock() {
+        private void fullyUnlock(LockProfile.Site site) {
+            unlockPut(site);
+            unlockTake(site);
+        }
+
+        /**
+         * Acquires the take lock that guards the head of this sub-queue: that of its priority group, which is takeLock
+         * unless it is split, or takeLock once removed from the multi-queue.
+         */
+        private void lockTake(LockProfile.Site site) {
+            for (; ; ) {
+                PriorityGroup group = priorityGroup;
+                TakeLock lock = group == null ? takeLock : group.takeLock;
+                lock.lock(site);
+                if (priorityGroup == group) {
+                    return;
+                }
+                // removed in the meantime, which is done holding the lock of the group
+                lock.unlock(site);
+            }
+        }
+
+        private void unlockTake(LockProfile.Site site) {
+            // priorityGroup does not change while its take lock is held
+            PriorityGroup group = priorityGroup;
+            (group == null ? takeLock : group.takeLock).unlock(site);
+        }
+
+        /*
+         * Profiled counterparts of the putLock operations, see the equivalent methods of TakeLock.
+         */
+
+        private void lockPut(LockProfile.Site site) {
+            LockProfile.Recorder profiler = lockProfiler;
+            if (profiler == null) {
+                putLock.lock();
+            } else {
+                long start = System.nanoTime();
+                putLock.lock();
+                putLockAcquired(profiler, site, start);
+            }
+            awaitLockFreePuts();
+        }
+
+        /** Acquires putLock if it is free. Used by combining insertions, which do not block on the lock. */
+        private boolean tryLockPut(LockProfile.Site site) {
+            LockProfile.Recorder profiler = lockProfiler;
+            long start = profiler == null ? 0 : System.nanoTime();
+            if (!putLock.tryLock()) {
+                return false;
+            }
+            if (profiler != null) {
+                putLockAcquired(profiler, site, start);
+            }
+            awaitLockFreePuts();
+            return true;
+        }
+
+        /**
+         * Waits for the lock-free insertions in progress to complete. Called after acquiring putLock, which makes new
+         * ones fall back to the lock.
+         */
+        private void awaitLockFreePuts() {
+            // assert putLock.isHeldByCurrentThread();
+            for (int spins = 0; lockFreePutsInFlight != 0; spins++) {
+                backOff(spins);
+            }
+        }
+
+        private void lockPutInterruptibly(LockProfile.Site site) throws InterruptedException {
+            LockProfile.Recorder profiler = lockProfiler;
+            if (profiler == null) {
+                putLock.lockInterruptibly();
+            } else {
+                long start = System.nanoTime();
+                putLock.lockInterruptibly();
+                putLockAcquired(profiler, site, start);
+            }
+            awaitLockFreePuts();
+        }
+
+        private void putLockAcquired(LockProfile.Recorder profiler, LockProfile.Site site, long start) {
+            if (putLock.getHoldCount() == 1) {
+                long now = System.nanoTime();
+                profiler.recordWait(LockProfile.Lock.PUT, site, now - start);
+                putLockProfiler = profiler;
+                putLockAcquiredNanos = now;
+            }
+        }
+
+        private void unlockPut(LockProfile.Site site) {
+            LockProfile.Recorder profiler = putLockProfiler;
+            if (profiler != null && putLock.getHoldCount() == 1) {
+                profiler.recordHold(LockProfile.Lock.PUT, site, System.nanoTime() - putLockAcquiredNanos);
+                putLockProfiler = null;
+            }
             putLock.unlock();
-            takeLock.unlock();
+            // a combining insertion may have been published while the lock was held, see the comment at the beginning
+            // of the class
+            PutRequest<E> request = putRequests;
+            if (request != null) {
+                LockSupport.unpark(request.thread);
+            }
+        }
+
+        /**
+         * Waits with the producer wait strategy until there is space, the strategy gives up, or the timeout elapses.
+         * Called without holding putLock, as some strategies never give up: a producer spinning with the lock would
+         * keep out the consumers that acquire both locks, and thus the space it waits for.
+         *
+         * @return the remaining time, in nanoseconds
+         */
+        private long idleNotFull(long nanos) throws InterruptedException {
+            // assert !putLock.isHeldByCurrentThread();
+            WaitStrategy strategy = producerWaitStrategy;
+            long start = System.nanoTime();
+            long remaining = nanos;
+            for (int attempt = 0; count.get() == capacity && remaining > 0; attempt++) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (!strategy.idle(attempt)) {
+                    break;
+                }
+                remaining = nanos - (System.nanoTime() - start);
+            }
+            return remaining;
+        }
+
+        /*
+         * Waits for space, registering as a waiter first, and checking the count again afterwards: a take that made
+         * space before could have seen no waiter and skipped the signal, see the comment at the beginning of the class.
+         */
+
+        private void awaitNotFull(LockProfile.Site site) throws InterruptedException {
+            notFullWaiters++;
+            try {
+                if (count.get() != capacity) {
+                    return;
+                }
+                LockProfile.Recorder profiler = pausePutProfiling(site);
+                Object event = QueueEvents.beginProducerWait();
+                try {
+                    notFull.await();
+                } finally {
+                    QueueEvents.endProducerWait(event, key);
+                    resumePutProfiling(profiler);
+                    // putLock was released while waiting
+                    awaitLockFreePuts();
+                }
+            } finally {
+                notFullWaiters--;
+            }
+        }
+
+        private long awaitNotFullNanos(long nanos, LockProfile.Site site) throws InterruptedException {
+            notFullWaiters++;
+            try {
+                if (count.get() != capacity) {
+                    return nanos;
+                }
+                LockProfile.Recorder profiler = pausePutProfiling(site);
+                Object event = QueueEvents.beginProducerWait();
+                try {
+                    return notFull.awaitNanos(nanos);
+                } finally {
+                    QueueEvents.endProducerWait(event, key);
+                    resumePutProfiling(profiler);
+                    // putLock was released while waiting
+                    awaitLockFreePuts();
+                }
+            } finally {
+                notFullWaiters--;
+            }
+        }
+
+        private LockProfile.Recorder pausePutProfiling(LockProfile.Site site) {
+            LockProfile.Recorder profiler = putLockProfiler;
+            if (profiler != null) {
+                profiler.recordHold(LockProfile.Lock.PUT, site, System.nanoTime() - putLockAcquiredNanos);
+                putLockProfiler = null;
+            }
+            return profiler;
+        }
+
+        private void resumePutProfiling(LockProfile.Recorder profiler) {
+            if (profiler != null) {
+                putLockProfiler = profiler;
+                putLockAcquiredNanos = System.nanoTime();
+            }
         }
 
         /* Tells whether both locks are held by current thread. */
@@ -771,6 +2930,22 @@ public class LinkedBlockingMultiQueue<K, E> extends AbstractPollable<E> {
         // return putLock.isHeldByCurrentThread() && takeLock.isHeldByCurrentThread();
         // }
 
+        /**
+         * Returns the first node, waiting for it to be linked if a lock-free insertion is in progress.
+         *
+         * @return the first node
+         */
+        private Node<E> first() {
+            // assert takeLock.isHeldByCurrentThread();
+            // assert size() > 0;
+            Node<E> first = head.next;
+            for (int spins = 0; first == null; spins++) {
+                backOff(spins);
+                first = head.next;
+            }
+            return first;
+        }
+
         /**
          * Removes a node from head of queue.
          *
@@ -780,16 +2955,136 @@ public class LinkedBlockingMultiQueue<K, E> extends AbstractPollable<E> {
             // assert takeLock.isHeldByCurrentThread();
             // assert size() > 0;
             Node<E> h = head;
-            Node<E> first = h.next;
+            Node<E> first = first();
             h.next = h; // help GC
             head = first;
             E x = first.item;
             first.item = null;
+            recordDequeue(1);
+            if (first instanceof TimedNode) {
+                priorityGroup.takeLock.recordSojourn(((TimedNode<E>) first).enqueuedNanos);
+            }
             return x;
         }
 
+        /**
+         * Removes up to maxElements nodes from head of queue at once, adding their elements to the given collection, and
+         * updates the count and the ready sub-queues once. Waiting producers are signaled once takeLock is released.
+         * Stops at the first node that a lock-free insertion is still linking, without waiting for it.
+         *
+         * @return the number of elements removed
+         */
+        private int dequeueTo(Collection<? super E> c, int maxElements) {
+            // assert takeLock.isHeldByCurrentThread();
+            // assert size() > 0;
+            int n = Math.min(maxElements, count.get());
+            Node<E> h = head;
+            int taken = 0;
+            try {
+                while (taken < n) {
+                    Node<E> first = h.next;
+                    if (first == null) {
+                        // still being linked, leave it and the rest for later
+                        break;
+                    }
+                    // add first, so that an element the collection rejects is left in the sub-queue
+                    c.add(first.item);
+                    h.next = h; // help GC
+                    h = first;
+                    first.item = null;
+                    taken += 1;
+                    if (first instanceof TimedNode) {
+                        priorityGroup.takeLock.recordSojourn(((TimedNode<E>) first).enqueuedNanos);
+                    }
+                }
+            } finally {
+                // keep the sub-queue consistent if c.add() threw
+                advanceHead(h, taken);
+            }
+            return taken;
+        }
+
+        /**
+         * Removes up to maxElements nodes from head of queue at once, storing their elements in the given array from
+         * the given offset. See {@link #dequeueTo(Collection, int)}.
+         *
+         * @return the number of elements removed
+         */
+        private int dequeueTo(Object[] target, int offset, int maxElements) {
+            // assert takeLock.isHeldByCurrentThread();
+            // assert size() > 0;
+            int n = Math.min(maxElements, count.get());
+            Node<E> h = head;
+            int taken = 0;
+            try {
+                while (taken < n) {
+                    Node<E> first = h.next;
+                    if (first == null) {
+                        // still being linked, leave it and the rest for later
+                        break;
+                    }
+                    // store first, so that an ArrayStoreException leaves the element in the sub-queue
+                    target[offset + taken] = first.item;
+                    h.next = h; // help GC
+                    h = first;
+                    first.item = null;
+                    taken += 1;
+                    if (first instanceof TimedNode) {
+                        priorityGroup.takeLock.recordSojourn(((TimedNode<E>) first).enqueuedNanos);
+                    }
+                }
+            } finally {
+                advanceHead(h, taken);
+            }
+            return taken;
+        }
+
+        /** Makes the given node the new head, after taking the given number of elements up to it. */
+        private void advanceHead(Node<E> newHead, int taken) {
+            // assert takeLock.isHeldByCurrentThread();
+            head = newHead;
+            recordDequeue(taken);
+            int oldSize = count.getAndAdd(-taken);
+            totalCount.add(-taken);
+            if (oldSize == taken && taken > 0) {
+                tookLast(this);
+            }
+            if (oldSize == capacity && taken > 0) {
+                // we just took elements from a full queue, notify any blocked offers once unlocked
+                deferSignalNotFull();
+            }
+        }
+
+        /**
+         * Returns how long the element at the head of this sub-queue has been waiting, in nanoseconds. Unlike the size,
+         * this measures the lag of consumers regardless of the rate at which elements arrive. Only available for
+         * elements inserted while sojourn tracking is enabled, see {@link
+         * LinkedBlockingMultiQueue#setSojournTracking(int)}.
+         *
+         * @return the age of the oldest element, 0 if this sub-queue is empty, or -1 if the oldest element was inserted
+         *     without tracking
+         */
+        public long oldestElementAgeNanos() {
+            if (count.get() == 0) {
+                return 0;
+            }
+            lockTake(LockProfile.Site.INSPECT);
+            try {
+                Node<E> first = head.next;
+                if (first == null) {
+                    return 0;
+                } else if (first instanceof TimedNode) {
+                    return Math.max(0, System.nanoTime() - ((TimedNode<E>) first).enqueuedNanos);
+                } else {
+                    return -1;
+                }
+            } finally {
+                unlockTake(LockProfile.Site.INSPECT);
+            }
+        }
+
         public String toString() {
-            fullyLock();
+            fullyLock(LockProfile.Site.INSPECT);
             try {
                 Node<E> p = head.next;
                 if (p == null) {
@@ -807,12 +3102,12 @@ public class LinkedBlockingMultiQueue<K, E> extends AbstractPollable<E> {
                     sb.append(", ");
                 }
             } finally {
-                fullyUnlock();
+                fullyUnlock(LockProfile.Site.INSPECT);
             }
         }
 
         public Object[] toArray() {
-            fullyLock();
+            fullyLock(LockProfile.Site.INSPECT);
             try {
                 int size = count.get();
                 Object[] a = new Object[size];
@@ -822,13 +3117,13 @@ public class LinkedBlockingMultiQueue<K, E> extends AbstractPollable<E> {
                 }
                 return a;
             } finally {
-                fullyUnlock();
+                fullyUnlock(LockProfile.Site.INSPECT);
             }
         }
 
         @SuppressWarnings("unchecked")
         public <T> T[] toArray(T[] a) {
-            fullyLock();
+            fullyLock(LockProfile.Site.INSPECT);
             try {
                 int size = count.get();
                 if (a.length < size) {
@@ -843,7 +3138,7 @@ public class LinkedBlockingMultiQueue<K, E> extends AbstractPollable<E> {
                 }
                 return a;
             } finally {
-                fullyUnlock();
+                fullyUnlock(LockProfile.Site.INSPECT);
             }
         }
 
@@ -871,14 +3166,14 @@ public class LinkedBlockingMultiQueue<K, E> extends AbstractPollable<E> {
             private E currentElement;
 
             Itr() {
-                fullyLock();
+                fullyLock(LockProfile.Site.ITERATOR);
                 try {
                     current = head.next;
                     if (current != null) {
                         currentElement = current.item;
                     }
                 } finally {
-                    fullyUnlock();
+                    fullyUnlock(LockProfile.Site.ITERATOR);
                 }
             }
 
@@ -906,7 +3201,7 @@ public class LinkedBlockingMultiQueue<K, E> extends AbstractPollable<E> {
             }
 
             public E next() {
-                fullyLock();
+                fullyLock(LockProfile.Site.ITERATOR);
                 try {
                     if (current == null) {
                         throw new NoSuchElementException();
@@ -917,7 +3212,7 @@ public class LinkedBlockingMultiQueue<K, E> extends AbstractPollable<E> {
                     currentElement = (current == null) ? null : current.item;
                     return x;
                 } finally {
-                    fullyUnlock();
+                    fullyUnlock(LockProfile.Site.ITERATOR);
                 }
             }
 
@@ -925,7 +3220,7 @@ public class LinkedBlockingMultiQueue<K, E> extends AbstractPollable<E> {
                 if (lastRet == null) {
                     throw new IllegalStateException();
                 }
-                fullyLock();
+                fullyLock(LockProfile.Site.ITERATOR);
                 try {
                     Node<E> node = lastRet;
                     lastRet = null;
@@ -936,12 +3231,44 @@ public class LinkedBlockingMultiQueue<K, E> extends AbstractPollable<E> {
                         }
                     }
                 } finally {
-                    fullyUnlock();
+                    fullyUnlock(LockProfile.Site.ITERATOR);
                 }
             }
         }
     }
 
+    /**
+     * Mutable holder of an element and the key of the sub-queue it was taken from, filled by {@link
+     * #takeEntry(Entry)} and {@link #pollEntry(Entry)}. Instances are not thread-safe, and are meant to be reused by the
+     * same consumer.
+     *
+     * @param <K> the type of the keys
+     * @param <E> the type of the elements
+     */
+    public static final class Entry<K, E> {
+
+        K key = null;
+        E element = null;
+
+        /**
+         * Returns the key of the sub-queue the last element was taken from.
+         *
+         * @return the key, or null if no element was taken yet
+         */
+        public K getKey() {
+            return key;
+        }
+
+        /**
+         * Returns the last element taken.
+         *
+         * @return the element, or null if no element was taken yet
+         */
+        public E getElement() {
+            return element;
+        }
+    }
+
     private static class Node<E> {
 
         E item;
@@ -950,15 +3277,120 @@ public class LinkedBlockingMultiQueue<K, E> extends AbstractPollable<E> {
          * One of:
          * - the real successor Node
          * - this Node, meaning the successor is head.next
-         * - null, meaning there is no successor (this is the last node)
+         * - null, meaning there is no successor (this is the last node), or that it is being linked by a lock-free
+         * insertion
+         *
+         * Volatile, as consumers can read it while a lock-free insertion links the node.
          */
-        Node<E> next = null;
+        volatile Node<E> next = null;
 
         Node(E item) {
             this.item = item;
         }
     }
 
+    /** A take published by a consumer, to be served by the holder of takeLock. */
+    private static final class TakeRequest<E> {
+
+        final Thread thread;
+
+        /** Next request in the stack. Written before publication and read by the server */
+        TakeRequest<E> next = null;
+
+        /** The element taken, null if there were none. Published by done */
+        E element = null;
+
+        volatile boolean done = false;
+
+        TakeRequest(Thread thread) {
+            this.thread = thread;
+        }
+    }
+
+    /**
+     * Activity counters of a sub-queue, only allocated while they are enabled. Most are plain fields, written under the
+     * lock that the counted operation already holds. Those written without it are striped adders, and the peak size is
+     * updated with a CAS, as lock-free insertions do not hold putLock.
+     */
+    private static final class Counters {
+
+        private static final AtomicIntegerFieldUpdater<Counters> PEAK_SIZE =
+                AtomicIntegerFieldUpdater.newUpdater(Counters.class, "peakSize");
+
+        /** Guarded by putLock */
+        long enqueued = 0;
+
+        long timedOutOffers = 0;
+
+        long blockedNanos = 0;
+
+        /** Guarded by the take lock of the priority group */
+        long dequeued = 0;
+
+        /** Insertions that do not hold putLock */
+        final LongAdder lockFreeEnqueued = new LongAdder();
+
+        /** Offers rejected with or without holding putLock */
+        final LongAdder rejectedOffers = new LongAdder();
+
+        volatile int peakSize = 0;
+
+        void recordSize(int size) {
+            int peak = peakSize;
+            while (size > peak && !PEAK_SIZE.compareAndSet(this, peak, size)) {
+                peak = peakSize;
+            }
+        }
+    }
+
+    /** A take waiting in the LIFO stack. */
+    private static final class Waiter {
+
+        final Thread thread;
+
+        /** Next waiter in the stack, guarded by waitLock */
+        Waiter next = null;
+
+        /** Set by the signaler, under waitLock; read by the waiter while parked */
+        volatile boolean signaled = false;
+
+        Waiter(Thread thread) {
+            this.thread = thread;
+        }
+    }
+
+    /** An insertion published by a producer, to be served by the holder of the putLock of the sub-queue. */
+    private static final class PutRequest<E> {
+
+        static final int PENDING = 0;
+        static final int INSERTED = 1;
+        static final int FULL = 2;
+
+        final Node<E> node;
+        final Thread thread;
+
+        /** Next request in the stack. Written before publication and read by the server */
+        PutRequest<E> next = null;
+
+        volatile int state = PENDING;
+
+        PutRequest(Node<E> node, Thread thread) {
+            this.node = node;
+            this.thread = thread;
+        }
+    }
+
+    /** Node that also records when it was enqueued, used when sojourn tracking is enabled. */
+    private static final class TimedNode<E> extends Node<E> {
+
+        final long enqueuedNanos;
+
+        TimedNode(E item, long enqueuedNanos) {
+            super(item);
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+
     /** Allows to choose the next subQueue. */
     public interface SubQueueSelection<K, E> {
 
@@ -982,5 +3414,14 @@ public class LinkedBlockingMultiQueue<K, E> extends AbstractPollable<E> {
          * @param priorityGroups priority groups
          */
         void setPriorityGroups(ArrayList<LinkedBlockingMultiQueue<K, E>.PriorityGroup> priorityGroups);
+
+        /**
+         * Sets the index of the priority groups that have elements: the positions in the list of priority groups of
+         * those that currently have enabled and non-empty sub-queues. It is kept up to date by the multi-queue, and can
+         * be read while holding the take lock, that is, from {@link #getNext()} and {@link #peek()}.
+         *
+         * @param readyGroups positions of the priority groups that have elements
+         */
+        default void setReadyGroups(BitSet readyGroups) {}
     }
 }
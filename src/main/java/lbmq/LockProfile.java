@@ -0,0 +1,152 @@
+package lbmq;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A snapshot of the lock acquisition profile of a multi-queue: how long threads waited to acquire its locks and how
+ * long they held them, split by lock and by the operation that acquired it. Put lock figures are added up over all
+ * sub-queues, as keeping a profile for each one would be too expensive with many sub-queues.
+ *
+ * <p>Time spent waiting on a condition (e.g. in a {@code take} on an empty queue) is neither wait nor hold time, as
+ * the lock is released while waiting.
+ *
+ * @see LinkedBlockingMultiQueue#setLockProfiling(boolean)
+ */
+public final class LockProfile {
+
+    /** The locks of a multi-queue. */
+    public enum Lock {
+        /** The lock shared by all consumers. */
+        TAKE,
+        /** The lock of each sub-queue, that producers acquire. */
+        PUT,
+        /** The lock that consumers acquire to wait for elements, and that is acquired to wake them up. */
+        WAIT
+    }
+
+    /** The operations that acquire locks. */
+    public enum Site {
+        /** {@code poll()}, with or without timeout */
+        POLL,
+        /** {@code take()} */
+        TAKE,
+        /** {@code peek()} */
+        PEEK,
+        /** {@code drainTo()} */
+        DRAIN_TO,
+        /** A producer, or a consumer that leaves elements behind, waking up a consumer that is waiting for elements */
+        SIGNAL_NOT_EMPTY,
+        /** {@code put()} and {@code offer()}, with or without timeout */
+        OFFER,
+        /** A consumer waking up a producer that is waiting for space */
+        SIGNAL_NOT_FULL,
+        /** {@code SubQueue.enable()} */
+        ENABLE,
+        /** {@code addSubQueue()} */
+        ADD_SUB_QUEUE,
+        /** {@code removeSubQueue()} */
+        REMOVE_SUB_QUEUE,
+        /** Sub-queue iterators */
+        ITERATOR,
+        /** {@code SubQueue.remove(Object)} and {@code SubQueue.clear()} */
+        REMOVE,
+        /**
+         * Read-only sub-queue operations that lock: {@code contains()}, {@code toArray()}, {@code toString()}, {@code
+         * stats()}, etc., and {@code setStatsEnabled()}
+         */
+        INSPECT
+    }
+
+    private static final int SLOTS = Lock.values().length * Site.values().length;
+
+    private final LatencyHistogram[] waitTimes;
+    private final LatencyHistogram[] holdTimes;
+
+    private LockProfile(LatencyHistogram[] waitTimes, LatencyHistogram[] holdTimes) {
+        this.waitTimes = waitTimes;
+        this.holdTimes = holdTimes;
+    }
+
+    private static int slot(Lock lock, Site site) {
+        return lock.ordinal() * Site.values().length + site.ordinal();
+    }
+
+    /**
+     * Returns the distribution of the time spent waiting to acquire the given lock from the given operation.
+     *
+     * @param lock the lock
+     * @param site the operation that acquires the lock
+     * @return the distribution of wait times, in nanoseconds
+     */
+    public LatencyHistogram getWaitTimes(Lock lock, Site site) {
+        return waitTimes[slot(lock, site)];
+    }
+
+    /**
+     * Returns the distribution of the time the given lock was held by the given operation.
+     *
+     * @param lock the lock
+     * @param site the operation that acquires the lock
+     * @return the distribution of hold times, in nanoseconds
+     */
+    public LatencyHistogram getHoldTimes(Lock lock, Site site) {
+        return holdTimes[slot(lock, site)];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("LockProfile{");
+        String separator = "";
+        for (Lock lock : Lock.values()) {
+            for (Site site : Site.values()) {
+                LatencyHistogram wait = getWaitTimes(lock, site);
+                if (wait.getCount() > 0) {
+                    sb.append(separator).append(lock).append('/').append(site);
+                    sb.append(": wait=").append(wait).append(", hold=").append(getHoldTimes(lock, site));
+                    separator = ", ";
+                }
+            }
+        }
+        return sb.append('}').toString();
+    }
+
+    /** Accumulates lock timings. Histograms are only allocated for the locks and sites that are actually used. */
+    static final class Recorder {
+
+        private static final LatencyHistogram EMPTY = new LatencyHistogram.Recorder().snapshot();
+
+        private final AtomicReferenceArray<LatencyHistogram.Recorder> waitTimes = new AtomicReferenceArray<>(SLOTS);
+        private final AtomicReferenceArray<LatencyHistogram.Recorder> holdTimes = new AtomicReferenceArray<>(SLOTS);
+
+        private static LatencyHistogram.Recorder recorder(
+                AtomicReferenceArray<LatencyHistogram.Recorder> recorders, int slot) {
+            LatencyHistogram.Recorder recorder = recorders.get(slot);
+            if (recorder == null) {
+                recorders.compareAndSet(slot, null, new LatencyHistogram.Recorder());
+                recorder = recorders.get(slot);
+            }
+            return recorder;
+        }
+
+        void recordWait(Lock lock, Site site, long nanos) {
+            recorder(waitTimes, slot(lock, site)).record(nanos);
+        }
+
+        void recordHold(Lock lock, Site site, long nanos) {
+            recorder(holdTimes, slot(lock, site)).record(nanos);
+        }
+
+        private static LatencyHistogram[] snapshot(AtomicReferenceArray<LatencyHistogram.Recorder> recorders) {
+            LatencyHistogram[] snapshot = new LatencyHistogram[SLOTS];
+            for (int i = 0; i < SLOTS; i++) {
+                LatencyHistogram.Recorder recorder = recorders.get(i);
+                snapshot[i] = recorder == null ? EMPTY : recorder.snapshot();
+            }
+            return snapshot;
+        }
+
+        LockProfile snapshot() {
+            return new LockProfile(snapshot(waitTimes), snapshot(holdTimes));
+        }
+    }
+}
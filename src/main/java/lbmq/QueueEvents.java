@@ -0,0 +1,35 @@
+package lbmq;
+
+/**
+ * Hooks for diagnostic events. This is the Java 8 version, in which they do nothing; the multi-release jar contains a
+ * Java 11 version of this class that emits JDK Flight Recorder events. Both versions must have the same methods.
+ *
+ * <p>Waits are reported as a begin/end pair, the begin method returning an opaque token (or null if the event is not
+ * enabled) that has to be passed to the end method.
+ */
+final class QueueEvents {
+
+    private QueueEvents() {}
+
+    /** A consumer is about to wait for elements. */
+    static Object beginConsumerWait() {
+        return null;
+    }
+
+    /** A consumer stopped waiting for elements, because it was signaled, timed out or was interrupted. */
+    static void endConsumerWait(Object event) {}
+
+    /** A producer is about to wait for space in a full sub-queue. */
+    static Object beginProducerWait() {
+        return null;
+    }
+
+    /** A producer stopped waiting for space, because it was signaled, timed out or was interrupted. */
+    static void endProducerWait(Object event, Object subQueueKey) {}
+
+    /** A sub-queue was enabled or disabled. */
+    static void subQueueEnabled(Object subQueueKey, boolean enabled, int size) {}
+
+    /** Elements were taken in a batch by {@code drainTo}. */
+    static void drained(int maxElements, int drained) {}
+}
@@ -0,0 +1,107 @@
+package lbmq;
+
+/**
+ * A snapshot of the activity counters of a sub-queue, or of the sum of them for a whole multi-queue. Counters are
+ * cumulative since they were enabled.
+ *
+ * <p>Counters are only kept while enabled, see {@link LinkedBlockingMultiQueue#setStatsEnabled(boolean)}. The
+ * snapshot of a sub-queue is taken holding its locks, so it is consistent; the sub-queues of a multi-queue are read
+ * one after another, so their sum can reflect slightly different moments.
+ *
+ * @see LinkedBlockingMultiQueue#setStatsEnabled(boolean)
+ * @see LinkedBlockingMultiQueue#stats()
+ * @see LinkedBlockingMultiQueue.SubQueue#stats()
+ */
+public final class QueueStats {
+
+    private final long enqueued;
+    private final long dequeued;
+    private final long rejectedOffers;
+    private final long timedOutOffers;
+    private final long blockedNanos;
+    private final int peakSize;
+
+    QueueStats(
+            long enqueued, long dequeued, long rejectedOffers, long timedOutOffers, long blockedNanos, int peakSize) {
+        this.enqueued = enqueued;
+        this.dequeued = dequeued;
+        this.rejectedOffers = rejectedOffers;
+        this.timedOutOffers = timedOutOffers;
+        this.blockedNanos = blockedNanos;
+        this.peakSize = peakSize;
+    }
+
+    /**
+     * Returns the number of elements inserted, by any of {@code add}, {@code offer} or {@code put}.
+     *
+     * @return the number of elements inserted
+     */
+    public long getEnqueued() {
+        return enqueued;
+    }
+
+    /**
+     * Returns the number of elements taken from the head of the multi-queue, by any of {@code poll}, {@code take} or
+     * {@code drainTo}. Elements discarded with {@code remove} or {@code clear} are not counted.
+     *
+     * @return the number of elements taken
+     */
+    public long getDequeued() {
+        return dequeued;
+    }
+
+    /**
+     * Returns the number of times a non-blocking {@code offer} (or {@code add}) failed because the sub-queue was full.
+     *
+     * @return the number of rejected offers
+     */
+    public long getRejectedOffers() {
+        return rejectedOffers;
+    }
+
+    /**
+     * Returns the number of times a timed {@code offer} gave up because the sub-queue stayed full for the whole wait.
+     *
+     * @return the number of timed-out offers
+     */
+    public long getTimedOutOffers() {
+        return timedOutOffers;
+    }
+
+    /**
+     * Returns the total time, in nanoseconds, that producers spent blocked waiting for space in a full sub-queue, in
+     * {@code put} or in a timed {@code offer}.
+     *
+     * @return the total blocked time of producers, in nanoseconds
+     */
+    public long getBlockedNanos() {
+        return blockedNanos;
+    }
+
+    /**
+     * Returns the maximum size that the sub-queue has reached. For a whole multi-queue, this is the maximum among all
+     * its sub-queues.
+     *
+     * @return the maximum size reached
+     */
+    public int getPeakSize() {
+        return peakSize;
+    }
+
+    QueueStats plus(QueueStats other) {
+        return new QueueStats(
+                enqueued + other.enqueued,
+                dequeued + other.dequeued,
+                rejectedOffers + other.rejectedOffers,
+                timedOutOffers + other.timedOutOffers,
+                blockedNanos + other.blockedNanos,
+                Math.max(peakSize, other.peakSize));
+    }
+
+    @Override
+    public String toString() {
+        return "QueueStats{enqueued=" + enqueued + ", dequeued=" + dequeued + ", rejectedOffers=" + rejectedOffers
+                + ", timedOutOffers=" + timedOutOffers + ", blockedNanos=" + blockedNanos + ", peakSize=" + peakSize
+                + '}';
+    }
+}
@@ -0,0 +1,13 @@
+package lbmq;
+
+/**
+ * Hint for busy-waiting loops. This is the Java 8 version, in which it does nothing; the multi-release jar contains a
+ * Java 11 version of this class that calls {@code Thread.onSpinWait()}. Both versions must have the same methods.
+ */
+final class SpinWait {
+
+    private SpinWait() {}
+
+    /** The caller is busy-waiting, and will check a condition again right after this call. */
+    static void onSpinWait() {}
+}
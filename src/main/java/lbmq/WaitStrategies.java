@@ -0,0 +1,103 @@
+package lbmq;
+
+import java.util.concurrent.locks.LockSupport;
+
+/** Factory methods for the common {@link WaitStrategy} implementations. */
+public final class WaitStrategies {
+
+    private WaitStrategies() {}
+
+    private static final WaitStrategy BLOCKING = attempt -> false;
+
+    private static final WaitStrategy BUSY_SPIN = attempt -> {
+        SpinWait.onSpinWait();
+        return true;
+    };
+
+    /**
+     * Returns a strategy that blocks right away. This is the default, and the right choice unless there are idle cores
+     * to spare.
+     *
+     * @return the blocking strategy
+     */
+    public static WaitStrategy blocking() {
+        return BLOCKING;
+    }
+
+    /**
+     * Returns a strategy that never blocks, busy-waiting until the condition is met. It gives the lowest latency, at
+     * the cost of a whole core per waiting thread.
+     *
+     * @return the busy-spinning strategy
+     */
+    public static WaitStrategy busySpin() {
+        return BUSY_SPIN;
+    }
+
+    /**
+     * Returns a strategy that busy-waits for a number of attempts, and then blocks.
+     *
+     * @param spins how many times to check the condition before blocking
+     * @return the spin-then-block strategy
+     * @throws IllegalArgumentException if spins is negative
+     */
+    public static WaitStrategy spinThenBlock(int spins) {
+        if (spins < 0) {
+            throw new IllegalArgumentException();
+        }
+        return attempt -> {
+            if (attempt >= spins) {
+                return false;
+            }
+            SpinWait.onSpinWait();
+            return true;
+        };
+    }
+
+    /**
+     * Returns a strategy that busy-waits for a number of attempts, and then keeps yielding the processor, never
+     * blocking. Other threads can run, but the waiting one is never parked.
+     *
+     * @param spins how many times to check the condition before starting to yield
+     * @return the spin-then-yield strategy
+     * @throws IllegalArgumentException if spins is negative
+     */
+    public static WaitStrategy spinThenYield(int spins) {
+        if (spins < 0) {
+            throw new IllegalArgumentException();
+        }
+        return attempt -> {
+            if (attempt < spins) {
+                SpinWait.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+            return true;
+        };
+    }
+
+    /**
+     * Returns a strategy that busy-waits for a number of attempts, and then sleeps for exponentially increasing
+     * periods, starting at one microsecond, up to a maximum, never blocking. The condition is checked after each
+     * sleep, so the latency is bounded by the maximum period, while an idle thread uses little CPU time.
+     *
+     * @param spins how many times to check the condition before starting to sleep
+     * @param maxSleepNanos the maximum sleep period, in nanoseconds
+     * @return the exponential backoff strategy
+     * @throws IllegalArgumentException if spins is negative or the maximum period is not positive
+     */
+    public static WaitStrategy backoff(int spins, long maxSleepNanos) {
+        if (spins < 0 || maxSleepNanos <= 0) {
+            throw new IllegalArgumentException();
+        }
+        return attempt -> {
+            if (attempt < spins) {
+                SpinWait.onSpinWait();
+            } else {
+                int doublings = Math.min(attempt - spins, 30);
+                LockSupport.parkNanos(Math.min(1000L << doublings, maxSleepNanos));
+            }
+            return true;
+        };
+    }
+}
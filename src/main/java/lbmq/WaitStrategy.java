@@ -0,0 +1,25 @@
+package lbmq;
+
+/**
+ * How a thread waits for a condition (e.g. a consumer waiting for elements) before blocking. Blocking means parking
+ * the thread until another one signals it, which takes microseconds on both sides; a strategy can keep checking the
+ * condition for a while instead, burning CPU time to react faster.
+ *
+ * <p>Implementations must be thread-safe, as the same instance is used by all the waiting threads. Common strategies
+ * are available in {@link WaitStrategies}.
+ *
+ * @see LinkedBlockingMultiQueue#setConsumerWaitStrategy(WaitStrategy)
+ * @see LinkedBlockingMultiQueue#setProducerWaitStrategy(WaitStrategy)
+ */
+public interface WaitStrategy {
+
+    /**
+     * Called each time the waiting thread finds the condition not met yet, before blocking. The implementation can
+     * spin, yield or sleep for a while before returning true, after which the condition is checked again, or return
+     * false to block until signaled. Interrupts and timeouts are checked by the caller between calls.
+     *
+     * @param attempt how many times this method was called before in the current wait, starting from 0
+     * @return true to check the condition again, false to block
+     */
+    boolean idle(int attempt);
+}
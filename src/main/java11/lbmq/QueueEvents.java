@@ -0,0 +1,115 @@
+package lbmq;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Hooks for diagnostic events, emitted as JDK Flight Recorder events. This is the Java 11 version of the class, placed
+ * in the multi-release section of the jar; it must have the same methods as the Java 8 one, which does nothing.
+ *
+ * <p>Events are created and checked only when a thread is about to block (or after a sub-queue status change or a
+ * batch drain), and disabled events are discarded by {@code isEnabled()}, so the cost when not recording is
+ * negligible.
+ */
+final class QueueEvents {
+
+    private QueueEvents() {}
+
+    @Name("lbmq.ConsumerWait")
+    @Label("Multi-Queue Consumer Wait")
+    @Description("A consumer waiting for elements in take() or poll(timeout)")
+    @Category("Linked Blocking Multi Queue")
+    static final class ConsumerWaitEvent extends Event {}
+
+    @Name("lbmq.ProducerWait")
+    @Label("Multi-Queue Producer Wait")
+    @Description("A producer waiting for space in a full sub-queue in put() or offer(timeout)")
+    @Category("Linked Blocking Multi Queue")
+    static final class ProducerWaitEvent extends Event {
+        @Label("Sub-Queue")
+        String subQueue;
+    }
+
+    @Name("lbmq.SubQueueEnabled")
+    @Label("Sub-Queue Enabled or Disabled")
+    @Category("Linked Blocking Multi Queue")
+    static final class SubQueueEnabledEvent extends Event {
+        @Label("Sub-Queue")
+        String subQueue;
+
+        @Label("Enabled")
+        boolean enabled;
+
+        @Label("Size")
+        int size;
+    }
+
+    @Name("lbmq.Drain")
+    @Label("Multi-Queue Drain")
+    @Description("A batch of elements taken by drainTo()")
+    @Category("Linked Blocking Multi Queue")
+    static final class DrainEvent extends Event {
+        @Label("Max Elements")
+        int maxElements;
+
+        @Label("Drained")
+        int drained;
+    }
+
+    static Object beginConsumerWait() {
+        ConsumerWaitEvent event = new ConsumerWaitEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    static void endConsumerWait(Object event) {
+        if (event != null) {
+            ((ConsumerWaitEvent) event).commit();
+        }
+    }
+
+    static Object beginProducerWait() {
+        ProducerWaitEvent event = new ProducerWaitEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    static void endProducerWait(Object event, Object subQueueKey) {
+        if (event != null) {
+            ProducerWaitEvent producerWait = (ProducerWaitEvent) event;
+            producerWait.end();
+            if (producerWait.shouldCommit()) {
+                producerWait.subQueue = String.valueOf(subQueueKey);
+                producerWait.commit();
+            }
+        }
+    }
+
+    static void subQueueEnabled(Object subQueueKey, boolean enabled, int size) {
+        SubQueueEnabledEvent event = new SubQueueEnabledEvent();
+        if (event.shouldCommit()) {
+            event.subQueue = String.valueOf(subQueueKey);
+            event.enabled = enabled;
+            event.size = size;
+            event.commit();
+        }
+    }
+
+    static void drained(int maxElements, int drained) {
+        DrainEvent event = new DrainEvent();
+        if (event.shouldCommit()) {
+            event.maxElements = maxElements;
+            event.drained = drained;
+            event.commit();
+        }
+    }
+}
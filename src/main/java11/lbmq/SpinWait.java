@@ -0,0 +1,15 @@
+package lbmq;
+
+/**
+ * Hint for busy-waiting loops. This is the Java 11 version of the class, placed in the multi-release section of the
+ * jar; it must have the same methods as the Java 8 one, which does nothing.
+ */
+final class SpinWait {
+
+    private SpinWait() {}
+
+    /** The caller is busy-waiting, and will check a condition again right after this call. */
+    static void onSpinWait() {
+        Thread.onSpinWait();
+    }
+}
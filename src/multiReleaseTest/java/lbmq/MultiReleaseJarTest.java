@@ -0,0 +1,62 @@
+package lbmq;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs against the packaged jar, instead of the compiled classes, and on Java 11 or later, to check that the classes
+ * of the multi-release section of the jar are the ones used.
+ */
+public class MultiReleaseJarTest {
+
+    /** the Java 11 version of the events class is loaded from the multi-release section */
+    @Test
+    public void testVersionedClassLoaded() {
+        URL url = QueueEvents.class.getResource("QueueEvents.class");
+        assertNotNull(url);
+        assertTrue(url.toString().contains("!/META-INF/versions/11/lbmq/QueueEvents.class"), url.toString());
+    }
+
+    /** waits, status changes and drains are recorded as JFR events */
+    @Test
+    public void testJfrEvents() throws Exception {
+        LinkedBlockingMultiQueue<String, Integer> q = new LinkedBlockingMultiQueue<>();
+        q.addSubQueue("a", 1);
+        LinkedBlockingMultiQueue<String, Integer>.SubQueue sq = q.getSubQueue("a");
+        Path file = Files.createTempFile("lbmq", ".jfr");
+        try {
+            try (Recording recording = new Recording()) {
+                recording.enable("lbmq.ConsumerWait");
+                recording.enable("lbmq.SubQueueEnabled");
+                recording.enable("lbmq.Drain");
+                recording.start();
+                assertNull(q.poll(1, MILLISECONDS));
+                assertTrue(sq.offer(1));
+                sq.enable(false);
+                sq.enable(true);
+                assertEquals(1, q.drainTo(new ArrayList<>()));
+                recording.stop();
+                recording.dump(file);
+            }
+            List<String> events = RecordingFile.readAllEvents(file).stream()
+                    .map(e -> e.getEventType().getName())
+                    .collect(Collectors.toList());
+            assertTrue(events.contains("lbmq.ConsumerWait"), events.toString());
+            assertEquals(2, events.stream().filter("lbmq.SubQueueEnabled"::equals).count(), events.toString());
+            assertTrue(events.contains("lbmq.Drain"), events.toString());
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package lbmq;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Allocation budgets of the main operations, measured with the per-thread allocation counter of HotSpot's {@link
+ * com.sun.management.ThreadMXBean}. These tests fail when an operation starts allocating more than it does now, so that
+ * improvements in allocation are not lost.
+ *
+ * <p>Every operation is repeated many times, after a warm-up so that the JIT has compiled it, and the average is
+ * compared against the budget. Budgets allow for a node of an uncompressed-oops JVM, the largest layout.
+ */
+public class AllocationTest {
+
+    private static final int WARMUP = 50_000;
+    private static final int OPERATIONS = 100_000;
+
+    /** Bytes of a node without compressed references: 16 bytes of header plus two references. */
+    private static final long NODE_BUDGET = 32;
+
+    /** Bytes of a timestamped node without compressed references. */
+    private static final long TIMED_NODE_BUDGET = 40;
+
+    /** Averaging error allowed, covering occasional allocations by the measurement itself. */
+    private static final double SLACK = 1.0;
+
+    private final Object element = new Object();
+
+    private static com.sun.management.ThreadMXBean threadMXBean() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean, "allocation counters not available");
+        com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(sunBean.isThreadAllocatedMemorySupported(), "allocation counters not supported");
+        sunBean.setThreadAllocatedMemoryEnabled(true);
+        return sunBean;
+    }
+
+    private static long allocatedBytes(com.sun.management.ThreadMXBean bean) {
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /** Returns the average number of bytes allocated by each run of the given operation. */
+    private static double bytesPerOperation(Runnable operation) {
+        com.sun.management.ThreadMXBean bean = threadMXBean();
+        for (int i = 0; i < WARMUP; i++) {
+            operation.run();
+        }
+        // reading the counter can allocate in some JVMs, discount that
+        long calibration = allocatedBytes(bean);
+        long overhead = allocatedBytes(bean) - calibration;
+        long start = allocatedBytes(bean);
+        for (int i = 0; i < OPERATIONS; i++) {
+            operation.run();
+        }
+        long allocated = allocatedBytes(bean) - start - overhead;
+        return (double) allocated / OPERATIONS;
+    }
+
+    private static void assertWithinBudget(long budget, double bytesPerOperation) {
+        assertTrue(
+                bytesPerOperation <= budget + SLACK,
+                String.format("allocated %.1f bytes per operation, budget is %d", bytesPerOperation, budget));
+    }
+
+    private LinkedBlockingMultiQueue<Integer, Object> createQueue() {
+        LinkedBlockingMultiQueue<Integer, Object> q = new LinkedBlockingMultiQueue<>();
+        q.addSubQueue(0, 1);
+        q.addSubQueue(1, 1);
+        q.addSubQueue(2, 2);
+        return q;
+    }
+
+    /** offer and poll allocate one node per element, and nothing else */
+    @Test
+    public void testOfferPoll() {
+        LinkedBlockingMultiQueue<Integer, Object> q = createQueue();
+        LinkedBlockingMultiQueue<Integer, Object>.SubQueue sq = q.getSubQueue(1);
+        assertWithinBudget(NODE_BUDGET, bytesPerOperation(() -> {
+            sq.offer(element);
+            q.poll();
+        }));
+    }
+
+    /** put and take allocate one node per element, and nothing else */
+    @Test
+    public void testPutTake() {
+        LinkedBlockingMultiQueue<Integer, Object> q = createQueue();
+        LinkedBlockingMultiQueue<Integer, Object>.SubQueue sq = q.getSubQueue(2);
+        assertWithinBudget(NODE_BUDGET, bytesPerOperation(() -> {
+            try {
+                sq.put(element);
+                q.take();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }));
+    }
+
+    /** peek does not allocate */
+    @Test
+    public void testPeek() {
+        LinkedBlockingMultiQueue<Integer, Object> q = createQueue();
+        q.getSubQueue(0).offer(element);
+        assertWithinBudget(0, bytesPerOperation(q::peek));
+    }
+
+    /** poll on an empty queue does not allocate */
+    @Test
+    public void testPollEmpty() {
+        LinkedBlockingMultiQueue<Integer, Object> q = createQueue();
+        assertWithinBudget(0, bytesPerOperation(q::poll));
+    }
+
+    /** drainTo allocates nothing apart from what the target collection does */
+    @Test
+    public void testDrainTo() {
+        LinkedBlockingMultiQueue<Integer, Object> q = createQueue();
+        ArrayList<Object> sink = new ArrayList<>(100);
+        int batch = 10;
+        // the budget covers the nodes of the whole batch, the drain itself has to fit in the slack
+        assertWithinBudget(batch * NODE_BUDGET, bytesPerOperation(() -> {
+            for (int i = 0; i < batch; i++) {
+                q.getSubQueue(i % 3).offer(element);
+            }
+            sink.clear();
+            q.drainTo(sink);
+        }));
+    }
+
+    /** with sojourn tracking, nodes get a timestamp, and recording allocates nothing else */
+    @Test
+    public void testOfferPollWithSojournTracking() {
+        LinkedBlockingMultiQueue<Integer, Object> q = createQueue();
+        q.setSojournTracking(1);
+        LinkedBlockingMultiQueue<Integer, Object>.SubQueue sq = q.getSubQueue(0);
+        assertWithinBudget(TIMED_NODE_BUDGET, bytesPerOperation(() -> {
+            sq.offer(element);
+            q.poll();
+        }));
+    }
+}
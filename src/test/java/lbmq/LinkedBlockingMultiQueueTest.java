@@ -11,11 +11,17 @@ import static org.junit.jupiter.api.Assertions.*;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.jupiter.api.Test;
 
 public class LinkedBlockingMultiQueueTest extends TestCase {
@@ -1428,6 +1434,1347 @@ public class LinkedBlockingMultiQueueTest extends TestCase {
         assertEquals(0, subject.totalSize());
     }
 
+    /**
+     * Checks that the total size and emptiness of the multi-queue match the sizes of its enabled sub-queues, and that
+     * poll() agrees.
+     */
+    private static void assertReadyCounts(LinkedBlockingMultiQueue<QueueKey, Integer> q) {
+        int expected = 0;
+        for (QueueKey key : QueueKey.values()) {
+            LinkedBlockingMultiQueue<QueueKey, Integer>.SubQueue sq = q.getSubQueue(key);
+            if (sq != null && sq.isEnabled()) {
+                expected += sq.size();
+            }
+        }
+        assertEquals(expected, q.totalSize());
+        assertEquals(expected == 0, q.isEmpty());
+        if (expected == 0) {
+            assertNull(q.poll());
+            assertNull(q.peek());
+        } else {
+            assertNotNull(q.peek());
+        }
+    }
+
+    /** enabling and disabling sub-queues, empty or not, keeps the multi-queue counts right */
+    @Test
+    public void testReadyCountEnableDisable() {
+        LinkedBlockingMultiQueue<QueueKey, Integer> q = createMultiQueue();
+        LinkedBlockingMultiQueue<QueueKey, Integer>.SubQueue a = q.getSubQueue(QueueKey.A);
+        LinkedBlockingMultiQueue<QueueKey, Integer>.SubQueue b = q.getSubQueue(QueueKey.B);
+        LinkedBlockingMultiQueue<QueueKey, Integer>.SubQueue c = q.getSubQueue(QueueKey.C);
+        b.offer(one);
+        b.offer(two);
+        c.offer(three);
+        b.enable(false);
+        assertReadyCounts(q);
+        c.enable(false);
+        c.enable(false);
+        assertReadyCounts(q);
+        a.enable(false);
+        a.enable(true);
+        assertReadyCounts(q);
+        b.enable(true);
+        b.enable(true);
+        assertReadyCounts(q);
+        assertEquals(one, q.poll());
+        c.enable(true);
+        assertReadyCounts(q);
+        c.enable(false);
+        assertEquals(two, q.poll());
+        assertReadyCounts(q);
+        // a disabled sub-queue that becomes non-empty is counted when enabled
+        a.enable(false);
+        a.offer(four);
+        assertReadyCounts(q);
+        a.enable(true);
+        c.enable(true);
+        assertReadyCounts(q);
+        assertEquals(four, q.poll());
+        assertEquals(three, q.poll());
+        assertReadyCounts(q);
+        // a sub-queue disabled while empty counts its first element once enabled again
+        b.enable(false);
+        b.enable(true);
+        b.offer(five);
+        assertReadyCounts(q);
+        assertEquals(five, q.poll());
+        assertReadyCounts(q);
+    }
+
+    /** removed sub-queues stop counting in the multi-queue, whatever is done with them afterwards */
+    @Test
+    public void testReadyCountRemoveSubQueue() {
+        LinkedBlockingMultiQueue<QueueKey, Integer> q = createMultiQueue();
+        LinkedBlockingMultiQueue<QueueKey, Integer>.SubQueue a = q.getSubQueue(QueueKey.A);
+        LinkedBlockingMultiQueue<QueueKey, Integer>.SubQueue b = q.getSubQueue(QueueKey.B);
+        LinkedBlockingMultiQueue<QueueKey, Integer>.SubQueue c = q.getSubQueue(QueueKey.C);
+        a.offer(one);
+        b.offer(two);
+        c.offer(three);
+        c.enable(false);
+        assertEquals(b, q.removeSubQueue(QueueKey.B));
+        assertEquals(c, q.removeSubQueue(QueueKey.C));
+        assertReadyCounts(q);
+        // elements inserted into removed sub-queues are kept there, not offered to consumers
+        assertTrue(b.offer(four));
+        q.setLockFreePuts(true);
+        assertTrue(c.offer(five));
+        assertEquals(2, b.size());
+        assertReadyCounts(q);
+        b.enable(false);
+        b.enable(true);
+        c.enable(true);
+        assertReadyCounts(q);
+        assertTrue(b.remove(two));
+        assertTrue(b.remove(four));
+        c.clear();
+        assertReadyCounts(q);
+        b.offer(six);
+        Iterator<Integer> it = b.iterator();
+        it.next();
+        it.remove();
+        assertReadyCounts(q);
+        assertEquals(one, q.poll());
+        assertReadyCounts(q);
+        // the remaining sub-queue is still counted right
+        a.offer(seven);
+        assertReadyCounts(q);
+        assertEquals(seven, q.poll());
+        assertReadyCounts(q);
+        // a sub-queue with the same key is a new one
+        q.addSubQueue(QueueKey.B, 2);
+        q.getSubQueue(QueueKey.B).offer(eight);
+        b.offer(nine);
+        assertReadyCounts(q);
+        assertEquals(eight, q.poll());
+        assertReadyCounts(q);
+    }
+
+    /**
+     * drains, batch takes and removals keep the multi-queue counts right, in a sequence of random operations over
+     * sub-queues of different sizes, some of them disabled
+     */
+    @Test
+    public void testReadyCountDrains() throws InterruptedException {
+        LinkedBlockingMultiQueue<QueueKey, Integer> q = createMultiQueue();
+        QueueKey[] keys = QueueKey.values();
+        Random random = new Random(42);
+        ArrayList<Integer> sink = new ArrayList<>();
+        Object[] array = new Object[4];
+        for (int i = 0; i < 2000; i++) {
+            LinkedBlockingMultiQueue<QueueKey, Integer>.SubQueue sq = q.getSubQueue(keys[random.nextInt(keys.length)]);
+            switch (random.nextInt(10)) {
+                case 0:
+                case 1:
+                case 2:
+                    for (int j = random.nextInt(4); j >= 0; j--) {
+                        sq.offer(i);
+                    }
+                    break;
+                case 3:
+                    q.drainTo(sink, 1 + random.nextInt(5));
+                    break;
+                case 4:
+                    q.drainTo(array, random.nextInt(array.length), array.length);
+                    break;
+                case 5:
+                    if (!q.isEmpty()) {
+                        assertNotNull(q.takeBatchFromNext(sink, 1 + random.nextInt(3)));
+                    }
+                    break;
+                case 6:
+                    q.drainTo(sink, 0, 1 + random.nextInt(5), 0, MILLISECONDS);
+                    break;
+                case 7:
+                    sq.enable(!sq.isEnabled());
+                    break;
+                case 8:
+                    Iterator<Integer> it = sq.iterator();
+                    if (!it.hasNext()) {
+                        break;
+                    }
+                    Integer element = it.next();
+                    if (random.nextBoolean()) {
+                        sq.remove(element);
+                    } else if (random.nextBoolean()) {
+                        it.remove();
+                    } else {
+                        sq.clear();
+                    }
+                    break;
+                default:
+                    q.poll();
+            }
+            sink.clear();
+            assertReadyCounts(q);
+        }
+    }
+
+    /** sub-queues of the same priority are served round-robin, in the order in which they became non-empty */
+    @Test
+    public void testRoundRobinOrder() {
+        LinkedBlockingMultiQueue<QueueKey, Integer> q = new LinkedBlockingMultiQueue<>();
+        q.addSubQueue(QueueKey.A, 0);
+        q.addSubQueue(QueueKey.B, 0);
+        q.addSubQueue(QueueKey.C, 0);
+        q.getSubQueue(QueueKey.C).offer(one);
+        q.getSubQueue(QueueKey.A).offer(two);
+        q.getSubQueue(QueueKey.C).offer(three);
+        q.getSubQueue(QueueKey.B).offer(four);
+        assertEquals(one, q.peek());
+        assertEquals(one, q.poll());
+        assertEquals(two, q.poll());
+        q.getSubQueue(QueueKey.A).offer(five);
+        assertEquals(four, q.poll());
+        assertEquals(three, q.poll());
+        assertEquals(five, q.poll());
+        assertNull(q.poll());
+    }
+
+    /** sub-queues emptied or disabled by any operation are skipped, and served again when they have elements */
+    @Test
+    public void testSubQueuesBecomingReady() {
+        LinkedBlockingMultiQueue<QueueKey, Integer> q = createMultiQueue();
+        LinkedBlockingMultiQueue<QueueKey, Integer>.SubQueue qa = q.getSubQueue(QueueKey.A);
+        LinkedBlockingMultiQueue<QueueKey, Integer>.SubQueue qb = q.getSubQueue(QueueKey.B);
+        LinkedBlockingMultiQueue<QueueKey, Integer>.SubQueue qc = q.getSubQueue(QueueKey.C);
+        qa.offer(one);
+        qb.offer(two);
+        assertEquals(one, q.peek());
+        assertTrue(qa.remove(one));
+        assertEquals(two, q.peek());
+        qb.clear();
+        assertNull(q.peek());
+        qa.offer(three);
+        qc.offer(four);
+        qa.enable(false);
+        assertEquals(four, q.poll());
+        qa.enable(true);
+        assertEquals(three, q.poll());
+        qb.offer(five);
+        q.removeSubQueue(QueueKey.B);
+        qc.offer(six);
+        assertEquals(six, q.poll());
+        assertNull(q.poll());
+        qa.offer(seven);
+        Iterator<Integer> it = qa.iterator();
+        it.next();
+        it.remove();
+        qc.offer(eight);
+        assertEquals(eight, q.poll());
+        assertEquals(0, q.totalSize());
+    }
+
+    /** the highest priority group with elements is found when groups are added and removed around it */
+    @Test
+    public void testPriorityGroupsWithElements() {
+        LinkedBlockingMultiQueue<QueueKey, Integer> q = new LinkedBlockingMultiQueue<>();
+        q.addSubQueue(QueueKey.B, 5);
+        q.getSubQueue(QueueKey.B).offer(one);
+        q.getSubQueue(QueueKey.B).offer(two);
+        q.addSubQueue(QueueKey.A, 1);
+        q.addSubQueue(QueueKey.C, 9);
+        q.getSubQueue(QueueKey.C).offer(three);
+        assertEquals(one, q.peek());
+        assertEquals(one, q.poll());
+        q.getSubQueue(QueueKey.A).offer(four);
+        assertEquals(four, q.poll());
+        q.getSubQueue(QueueKey.A).offer(five);
+        q.removeSubQueue(QueueKey.A);
+        assertEquals(2, q.getPriorityGroupsCount());
+        ArrayList<Integer> l = new ArrayList<>();
+        assertEquals(2, q.drainTo(l));
+        assertEquals(Arrays.asList(two, three), l);
+        assertNull(q.poll());
+    }
+
+    /** combining consumers take every element exactly once, with any take or poll variant */
+    @Test
+    public void testTakeCombining() throws InterruptedException {
+        LinkedBlockingMultiQueue<QueueKey, Integer> q = createMultiQueue();
+        q.setTakeCombining(true);
+        assertNull(q.poll());
+        assertNull(q.poll(0, MILLISECONDS));
+        int consumers = 8;
+        int perConsumer = 1000;
+        ConcurrentHashMap<Integer, Boolean> taken = new ConcurrentHashMap<>();
+        ExecutorService executor = Executors.newFixedThreadPool(consumers);
+        try {
+            for (int i = 0; i < consumers; i++) {
+                boolean timed = i % 2 == 0;
+                executor.execute(() -> {
+                    try {
+                        for (int j = 0; j < perConsumer; j++) {
+                            Integer element = timed ? q.poll(LONG_DELAY_MS, MILLISECONDS) : q.take();
+                            assertNotNull(element);
+                            assertNull(taken.put(element, true));
+                        }
+                    } catch (InterruptedException e) {
+                        threadUnexpectedException(e);
+                    }
+                });
+            }
+            for (int i = 0; i < consumers * perConsumer; i++) {
+                q.getSubQueue(QueueKey.values()[i % 3]).put(i);
+            }
+        } finally {
+            joinPool(executor);
+        }
+        assertEquals(consumers * perConsumer, taken.size());
+        assertEquals(0, q.totalSize());
+    }
+
+    /** combining producers insert every element, keeping the order of each producer, also when the queue fills up */
+    @Test
+    public void testPutCombining() throws InterruptedException {
+        LinkedBlockingMultiQueue<QueueKey, Integer> q = createSingleQueue(10);
+        LinkedBlockingMultiQueue<QueueKey, Integer>.SubQueue sq = q.getSubQueue(QueueKey.A);
+        q.setPutCombining(true);
+        q.setStatsEnabled(true);
+        int producers = 8;
+        int perProducer = 1000;
+        ExecutorService executor = Executors.newFixedThreadPool(producers);
+        int[] lastTaken = new int[producers];
+        Arrays.fill(lastTaken, -1);
+        try {
+            for (int i = 0; i < producers; i++) {
+                int producer = i;
+                executor.execute(() -> {
+                    try {
+                        for (int j = 0; j < perProducer; j++) {
+                            sq.put(producer * perProducer + j);
+                        }
+                    } catch (InterruptedException e) {
+                        threadUnexpectedException(e);
+                    }
+                });
+            }
+            for (int i = 0; i < producers * perProducer; i++) {
+                int element = q.take();
+                int producer = element / perProducer;
+                assertTrue(element % perProducer > lastTaken[producer]);
+                lastTaken[producer] = element % perProducer;
+            }
+        } finally {
+            joinPool(executor);
+        }
+        assertEquals(0, q.totalSize());
+        assertEquals(producers * perProducer, sq.stats().getEnqueued());
+        assertTrue(sq.offer(one));
+        assertEquals(one, q.poll());
+    }
+
+    /** lock-free producers insert every element, keeping the order of each producer, also when the queue fills up */
+    @Test
+    public void testLockFreePuts() throws InterruptedException {
+        LinkedBlockingMultiQueue<QueueKey, Integer> q = createSingleQueue(10);
+        LinkedBlockingMultiQueue<QueueKey, Integer>.SubQueue sq = q.getSubQueue(QueueKey.A);
+        q.setLockFreePuts(true);
+        q.setStatsEnabled(true);
+        int producers = 8;
+        int perProducer = 1000;
+        ExecutorService executor = Executors.newFixedThreadPool(producers);
+        int[] lastTaken = new int[producers];
+        Arrays.fill(lastTaken, -1);
+        try {
+            for (int i = 0; i < producers; i++) {
+                int producer = i;
+                executor.execute(() -> {
+                    try {
+                        for (int j = 0; j < perProducer; j++) {
+                            int element = producer * perProducer + j;
+                            if (j % 2 == 0) {
+                                sq.put(element);
+                            } else {
+                                while (!sq.offer(element)) {
+                                    Thread.yield();
+                                }
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        threadUnexpectedException(e);
+                    }
+                });
+            }
+            for (int i = 0; i < producers * perProducer; i++) {
+                if (i % 100 == 0) {
+                    // operations that need the put lock exclude lock-free producers
+                    sq.enable(false);
+                    assertEquals(0, q.totalSize());
+                    assertEquals(sq.size(), sq.toArray().length);
+                    sq.enable(true);
+                }
+                int element = q.take();
+                int producer = element / perProducer;
+                assertTrue(element % perProducer > lastTaken[producer]);
+                lastTaken[producer] = element % perProducer;
+            }
+        } finally {
+            joinPool(executor);
+        }
+        assertEquals(0, q.totalSize());
+        assertEquals(producers * perProducer, sq.stats().getEnqueued());
+        assertTrue(sq.stats().getPeakSize() <= 10);
+    }
+
+    /**
+     * drains and batch takes get every element of oversubscribed lock-free producers, in order, also when they find
+     * elements that are counted but not linked yet
+     */
+    @Test
+    public void testLockFreePutsWithDrains() throws InterruptedException {
+        LinkedBlockingMultiQueue<QueueKey, Integer> q = createMultiQueue();
+        q.setLockFreePuts(true);
+        QueueKey[] keys = QueueKey.values();
+        int producers = 4 * Runtime.getRuntime().availableProcessors() + keys.length;
+        int perProducer = 2000;
+        ExecutorService executor = Executors.newFixedThreadPool(producers);
+        int[] lastTaken = new int[producers];
+        Arrays.fill(lastTaken, -1);
+        try {
+            for (int i = 0; i < producers; i++) {
+                int producer = i;
+                LinkedBlockingMultiQueue<QueueKey, Integer>.SubQueue sq = q.getSubQueue(keys[i % keys.length]);
+                executor.execute(() -> {
+                    for (int j = 0; j < perProducer; j++) {
+                        sq.offer(producer * perProducer + j);
+                    }
+                });
+            }
+            ArrayList<Integer> batch = new ArrayList<>();
+            Object[] array = new Object[7];
+            int taken = 0;
+            for (int round = 0; taken < producers * perProducer; round++) {
+                batch.clear();
+                switch (round % 3) {
+                    case 0:
+                        q.drainTo(batch, 5);
+                        break;
+                    case 1:
+                        int n = q.drainTo(array, 0, array.length);
+                        for (int i = 0; i < n; i++) {
+                            batch.add((Integer) array[i]);
+                        }
+                        break;
+                    default:
+                        assertNotNull(q.pollBatchFromNext(batch, 3, LONG_DELAY_MS, MILLISECONDS));
+                }
+                for (int element : batch) {
+                    int producer = element / perProducer;
+                    assertTrue(element % perProducer > lastTaken[producer]);
+                    lastTaken[producer] = element % perProducer;
+                }
+                taken += batch.size();
+            }
+        } finally {
+            joinPool(executor);
+        }
+        assertEquals(0, q.totalSize());
+        assertNull(q.poll());
+    }
+
+    /** elements are handed over, timeouts expire and interrupts are honored with every wait strategy */
+    @Test
+    public void testWaitStrategies() throws InterruptedException {
+        assertThrows(IllegalArgumentException.class, () -> WaitStrategies.spinThenBlock(-1));
+        assertThrows(IllegalArgumentException.class, () -> WaitStrategies.backoff(0, 0));
+        WaitStrategy[] strategies = {
+            WaitStrategies.blocking(),
+            WaitStrategies.busySpin(),
+            WaitStrategies.spinThenBlock(100),
+            WaitStrategies.spinThenYield(100),
+            WaitStrategies.backoff(100, 10_000)
+        };
+        for (WaitStrategy strategy : strategies) {
+            LinkedBlockingMultiQueue<QueueKey, Integer> q = createSingleQueue(1);
+            LinkedBlockingMultiQueue<QueueKey, Integer>.SubQueue sq = q.getSubQueue(QueueKey.A);
+            q.setConsumerWaitStrategy(strategy);
+            q.setProducerWaitStrategy(strategy);
+            long startTime = System.nanoTime();
+            assertNull(q.poll(timeoutMillis(), MILLISECONDS));
+            assertTrue(millisElapsedSince(startTime) >= timeoutMillis());
+            sq.put(zero);
+            assertFalse(sq.offer(one, timeoutMillis(), MILLISECONDS));
+            int elements = 1000;
+            Thread t = newStartedThread(new CheckedRunnable() {
+                public void realRun() throws InterruptedException {
+                    for (int i = 1; i < elements; i++) {
+                        sq.put(i);
+                    }
+                }
+            });
+            for (int i = 0; i < elements; i++) {
+                assertEquals(i, (int) q.take());
+            }
+            awaitTermination(t);
+            Thread.currentThread().interrupt();
+            try {
+                q.take();
+                shouldThrow();
+            } catch (InterruptedException success) {
+                // expected
+            }
+        }
+        assertThrows(NullPointerException.class, () -> createSingleQueue().setConsumerWaitStrategy(null));
+    }
+
+    /**
+     * a producer waiting for space with a strategy that does not block does not hold the lock of the sub-queue, so
+     * operations that lock it, and the take that makes the space, go ahead
+     */
+    @Test
+    public void testProducerWaitStrategyDoesNotHoldLock() throws InterruptedException {
+        WaitStrategy[] strategies = {
+            WaitStrategies.busySpin(), WaitStrategies.spinThenYield(100), WaitStrategies.backoff(100, 10_000)
+        };
+        for (WaitStrategy strategy : strategies) {
+            LinkedBlockingMultiQueue<QueueKey, Integer> q = createSingleQueue(1);
+            LinkedBlockingMultiQueue<QueueKey, Integer>.SubQueue sq = q.getSubQueue(QueueKey.A);
+            q.setProducerWaitStrategy(strategy);
+            sq.put(zero);
+            Thread producer = newStartedThread(new CheckedRunnable() {
+                public void realRun() throws InterruptedException {
+                    sq.put(one);
+                }
+            });
+            delay(SHORT_DELAY_MS);
+            assertTrue(producer.isAlive());
+            Thread inspector = newStartedThread(new CheckedRunnable() {
+                public void realRun() {
+                    assertFalse(sq.contains(five));
+                    sq.enable(false);
+                    sq.enable(true);
+                    assertEquals(1, sq.toArray().length);
+                }
+            });
+            awaitTermination(inspector);
+            assertEquals(zero, q.take());
+            awaitTermination(producer);
+            assertEquals(one, q.take());
+        }
+    }
+
+    /** takes of several elements from a full sub-queue, and combined takes, wake up a producer waiting for space */
+    @Test
+    public void testBatchTakesSignalNotFull() throws InterruptedException {
+        for (int i = 0; i < 4; i++) {
+            LinkedBlockingMultiQueue<QueueKey, Integer> q = createSingleQueue(2);
+            LinkedBlockingMultiQueue<QueueKey, Integer>.SubQueue sq = q.getSubQueue(QueueKey.A);
+            q.setDrainQuantum(2);
+            sq.put(zero);
+            sq.put(one);
+            Thread producer = newStartedThread(new CheckedRunnable() {
+                public void realRun() throws InterruptedException {
+                    sq.put(two);
+                }
+            });
+            waitForThreadToEnterWaitState(producer, LONG_DELAY_MS);
+            ArrayList<Integer> l = new ArrayList<>();
+            switch (i) {
+                case 0:
+                    assertEquals(2, q.drainTo(l));
+                    break;
+                case 1:
+                    assertEquals(2, q.drainTo(new Object[2], 0, 2));
+                    break;
+                case 2:
+                    assertEquals(QueueKey.A, q.takeBatchFromNext(l, 2));
+                    break;
+                default:
+                    q.setTakeCombining(true);
+                    assertEquals(zero, q.take());
+            }
+            awaitTermination(producer);
+            assertTrue(sq.contains(two));
+        }
+    }
+
+    /**
+     * a producer that inserts while the only consumer is on its way to park wakes it up, or the consumer sees the
+     * element, at every point of the race: signals are skipped only when nobody is waiting
+     */
+    @Test
+    public void testNotEmptySignalRacesParkingConsumer() throws InterruptedException {
+        for (boolean lifo : new boolean[] {false, true}) {
+            LinkedBlockingMultiQueue<QueueKey, Integer> q = createSingleQueue();
+            LinkedBlockingMultiQueue<QueueKey, Integer>.SubQueue sq = q.getSubQueue(QueueKey.A);
+            q.setLifoWakeup(lifo);
+            int rounds = 2000;
+            CheckedBarrier barrier = new CheckedBarrier(2);
+            Thread consumer = newStartedThread(new CheckedRunnable() {
+                public void realRun() throws InterruptedException {
+                    for (int i = 0; i < rounds; i++) {
+                        barrier.await();
+                        assertEquals(i, (int) q.take());
+                    }
+                }
+            });
+            for (int i = 0; i < rounds; i++) {
+                // a lost wakeup leaves the consumer parked, and this barrier times out
+                barrier.await();
+                for (int j = i % 8; j > 0; j--) {
+                    Thread.yield();
+                }
+                sq.offer(i);
+            }
+            awaitTermination(consumer);
+            assertTrue(q.isEmpty());
+        }
+    }
+
+    /**
+     * a consumer that takes from a full sub-queue while its only producer is on its way to park wakes it up, or the
+     * producer sees the space, at every point of the race
+     */
+    @Test
+    public void testNotFullSignalRacesParkingProducer() throws InterruptedException {
+        LinkedBlockingMultiQueue<QueueKey, Integer> q = createSingleQueue(1);
+        LinkedBlockingMultiQueue<QueueKey, Integer>.SubQueue sq = q.getSubQueue(QueueKey.A);
+        int rounds = 2000;
+        CheckedBarrier barrier = new CheckedBarrier(2);
+        sq.put(0);
+        Thread producer = newStartedThread(new CheckedRunnable() {
+            public void realRun() throws InterruptedException {
+                for (int i = 1; i <= rounds; i++) {
+                    barrier.await();
+                    sq.put(i);
+                }
+            }
+        });
+        for (int i = 0; i < rounds; i++) {
+            // a lost wakeup leaves the producer parked, and this barrier times out
+            barrier.await();
+            for (int j = i % 8; j > 0; j--) {
+                Thread.yield();
+            }
+            assertEquals(i, (int) q.poll(LONG_DELAY_MS, MILLISECONDS));
+        }
+        awaitTermination(producer);
+        assertEquals(rounds, (int) q.poll());
+    }
+
+    /**
+     * with many consumers and producers inserting now and then into small sub-queues, no consumer stays parked while
+     * there are elements to take, and no producer stays parked while its sub-queue has space
+     */
+    @Test
+    public void testNoThreadParkedWhileWorkRemains() throws InterruptedException {
+        for (boolean lifo : new boolean[] {false, true}) {
+            LinkedBlockingMultiQueue<QueueKey, Integer> q = new LinkedBlockingMultiQueue<>();
+            q.addSubQueue(QueueKey.A, 1, 2);
+            q.addSubQueue(QueueKey.B, 2, 2);
+            q.addSubQueue(QueueKey.C, 2, 2);
+            q.setLifoWakeup(lifo);
+            QueueKey[] keys = QueueKey.values();
+            int perProducer = 300;
+            int total = keys.length * perProducer;
+            AtomicInteger taken = new AtomicInteger();
+            Thread[] consumers = new Thread[8];
+            for (int i = 0; i < consumers.length; i++) {
+                int consumer = i;
+                consumers[i] = newStartedThread(() -> {
+                    ArrayList<Integer> batch = new ArrayList<>();
+                    try {
+                        while (true) {
+                            switch (consumer % 3) {
+                                case 0:
+                                    q.take();
+                                    taken.incrementAndGet();
+                                    break;
+                                case 1:
+                                    batch.clear();
+                                    q.takeBatchFromNext(batch, 2);
+                                    taken.addAndGet(batch.size());
+                                    break;
+                                default:
+                                    batch.clear();
+                                    taken.addAndGet(q.drainTo(batch, 1, 3, LONG_DELAY_MS, MILLISECONDS));
+                            }
+                        }
+                    } catch (InterruptedException done) {
+                        // stopped by the test
+                    }
+                });
+            }
+            Thread[] producers = new Thread[keys.length];
+            for (int i = 0; i < producers.length; i++) {
+                LinkedBlockingMultiQueue<QueueKey, Integer>.SubQueue sq = q.getSubQueue(keys[i]);
+                producers[i] = newStartedThread(new CheckedRunnable() {
+                    public void realRun() throws InterruptedException {
+                        for (int j = 0; j < perProducer; j++) {
+                            sq.put(j);
+                            if (j % 8 == 0) {
+                                // sparse insertions, so that consumers park in between
+                                Thread.sleep(1);
+                            }
+                        }
+                    }
+                });
+            }
+            long startTime = System.nanoTime();
+            long stuckSince = 0;
+            while (taken.get() < total) {
+                assertTrue(millisElapsedSince(startTime) < LONG_DELAY_MS, "timed out");
+                if (stuck(q, consumers, producers, keys)) {
+                    if (stuckSince == 0) {
+                        stuckSince = System.nanoTime();
+                    }
+                    assertTrue(millisElapsedSince(stuckSince) < SMALL_DELAY_MS, "threads parked while work remains");
+                } else {
+                    stuckSince = 0;
+                }
+                Thread.sleep(1);
+            }
+            for (Thread producer : producers) {
+                awaitTermination(producer);
+            }
+            for (Thread consumer : consumers) {
+                consumer.interrupt();
+                awaitTermination(consumer);
+            }
+            assertEquals(total, taken.get());
+            assertTrue(q.isEmpty());
+        }
+    }
+
+    /**
+     * Tells whether every consumer is parked while there are elements, or some producer is parked while its sub-queue
+     * has space.
+     */
+    private static boolean stuck(
+            LinkedBlockingMultiQueue<QueueKey, Integer> q, Thread[] consumers, Thread[] producers, QueueKey[] keys) {
+        boolean consumersParked = true;
+        for (Thread consumer : consumers) {
+            Thread.State state = consumer.getState();
+            consumersParked &= state == Thread.State.WAITING || state == Thread.State.TIMED_WAITING;
+        }
+        if (consumersParked && !q.isEmpty()) {
+            return true;
+        }
+        for (int i = 0; i < producers.length; i++) {
+            if (producers[i].getState() == Thread.State.WAITING && q.getSubQueue(keys[i]).remainingCapacity() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * with many consumers parked and producers inserting one or two elements at a time, every element is taken, with a
+     * single take lock and with one per priority group. Nothing else is inserted until the elements are taken, and
+     * consumers do not take again until then, so a lost wakeup (or a lost cascading signal, for the second element)
+     * leaves an element in the queue for good
+     */
+    @Test
+    public void testNoLostWakeupsWithManyConsumers() throws InterruptedException {
+        for (boolean split : new boolean[] {false, true}) {
+            for (boolean lifo : new boolean[] {false, true}) {
+                LinkedBlockingMultiQueue<QueueKey, Integer> q = new LinkedBlockingMultiQueue<>(split);
+                q.addSubQueue(QueueKey.A, 1);
+                q.addSubQueue(QueueKey.B, 2);
+                q.addSubQueue(QueueKey.C, 3);
+                q.setLifoWakeup(lifo);
+                AtomicInteger inserted = new AtomicInteger();
+                AtomicInteger taken = new AtomicInteger();
+                Thread[] consumers = new Thread[16];
+                for (int i = 0; i < consumers.length; i++) {
+                    int consumer = i;
+                    consumers[i] = newStartedThread(() -> {
+                        ArrayList<Integer> batch = new ArrayList<>();
+                        LinkedBlockingMultiQueue.Entry<QueueKey, Integer> entry =
+                                new LinkedBlockingMultiQueue.Entry<>();
+                        try {
+                            while (true) {
+                                batch.clear();
+                                switch (consumer % 5) {
+                                    case 0:
+                                        batch.add(q.take());
+                                        break;
+                                    case 1:
+                                        batch.add(q.poll(LONG_DELAY_MS, MILLISECONDS));
+                                        break;
+                                    case 2:
+                                        q.takeEntry(entry);
+                                        batch.add(entry.getElement());
+                                        break;
+                                    case 3:
+                                        q.takeBatchFromNext(batch, 2);
+                                        break;
+                                    default:
+                                        q.drainTo(batch, 1, 2, LONG_DELAY_MS, MILLISECONDS);
+                                }
+                                taken.addAndGet(batch.size());
+                                // the rest of the elements are left to the other consumers
+                                while (taken.get() < inserted.get()) {
+                                    Thread.yield();
+                                }
+                            }
+                        } catch (InterruptedException done) {
+                            // stopped by the test
+                        }
+                    });
+                }
+                for (Thread consumer : consumers) {
+                    waitForThreadToEnterWaitState(consumer, LONG_DELAY_MS);
+                }
+                QueueKey[] keys = QueueKey.values();
+                int perProducer = 100;
+                // producers take turns, so that an element left behind is not taken along with a later one
+                Semaphore turn = new Semaphore(1);
+                Thread[] producers = new Thread[keys.length];
+                for (int i = 0; i < producers.length; i++) {
+                    LinkedBlockingMultiQueue<QueueKey, Integer>.SubQueue sq = q.getSubQueue(keys[i]);
+                    // the second element goes to another priority group
+                    LinkedBlockingMultiQueue<QueueKey, Integer>.SubQueue other =
+                            q.getSubQueue(keys[(i + 1) % keys.length]);
+                    producers[i] = newStartedThread(new CheckedRunnable() {
+                        public void realRun() throws InterruptedException {
+                            for (int j = 0; j < perProducer; j++) {
+                                if (j % 2 == 0) {
+                                    // let the consumers park
+                                    Thread.sleep(1);
+                                }
+                                turn.acquire();
+                                try {
+                                    int n = 1 + j % 2;
+                                    int expected = inserted.addAndGet(n);
+                                    sq.put(j);
+                                    if (n == 2) {
+                                        other.put(j);
+                                    }
+                                    long startTime = System.nanoTime();
+                                    while (taken.get() < expected) {
+                                        assertTrue(millisElapsedSince(startTime) < LONG_DELAY_MS, "element not taken");
+                                        Thread.yield();
+                                    }
+                                } finally {
+                                    turn.release();
+                                }
+                            }
+                        }
+                    });
+                }
+                for (Thread producer : producers) {
+                    awaitTermination(producer, 2 * LONG_DELAY_MS);
+                }
+                for (Thread consumer : consumers) {
+                    consumer.interrupt();
+                    awaitTermination(consumer);
+                }
+                assertEquals(inserted.get(), taken.get());
+                assertTrue(q.isEmpty());
+                assertEquals(0, q.totalSize());
+            }
+        }
+    }
+
+    /**
+     * with a take lock per priority group, elements are taken in the same order as with a single one, that is, in
+     * strict priority order between groups and round-robin within them, with every take, peek and drain variant, and
+     * while sub-queues (and so groups) are enabled, disabled, added and removed
+     */
+    @Test
+    public void testSplitTakeLockOrder() throws InterruptedException {
+        LinkedBlockingMultiQueue<QueueKey, Integer> single = new LinkedBlockingMultiQueue<>(false);
+        LinkedBlockingMultiQueue<QueueKey, Integer> split = new LinkedBlockingMultiQueue<>(true);
+        assertThrows(IllegalStateException.class, () -> split.setTakeCombining(true));
+        split.setTakeCombining(false);
+        QueueKey[] keys = QueueKey.values();
+        for (LinkedBlockingMultiQueue<QueueKey, Integer> q : Arrays.asList(single, split)) {
+            for (QueueKey key : keys) {
+                q.addSubQueue(key, splitTestPriority(key));
+            }
+            q.setDrainQuantum(2);
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < 2000; i++) {
+            QueueKey key = keys[random.nextInt(keys.length)];
+            int operation = random.nextInt(20);
+            int n = 1 + random.nextInt(4);
+            assertEquals(
+                    applySplitTestOperation(single, operation, key, n, i),
+                    applySplitTestOperation(split, operation, key, n, i),
+                    "operation " + i);
+        }
+        assertEquals(single.getPriorityGroupsCount(), split.getPriorityGroupsCount());
+    }
+
+    /** Priorities of the sub-queues of testSplitTakeLockOrder, two of them in the same group. */
+    private static int splitTestPriority(QueueKey key) {
+        return key == QueueKey.B ? 1 : 2;
+    }
+
+    /** Applies one of the operations of testSplitTakeLockOrder, and returns what it observed. */
+    private static List<Object> applySplitTestOperation(
+            LinkedBlockingMultiQueue<QueueKey, Integer> q, int operation, QueueKey key, int n, int i)
+            throws InterruptedException {
+        LinkedBlockingMultiQueue<QueueKey, Integer>.SubQueue sq = q.getSubQueue(key);
+        ArrayList<Object> result = new ArrayList<>();
+        switch (operation) {
+            case 0:
+            case 1:
+            case 2:
+            case 3:
+                for (int j = 0; j < n && sq != null; j++) {
+                    sq.offer(i * 4 + j);
+                }
+                break;
+            case 4:
+            case 5:
+                result.add(q.poll());
+                break;
+            case 6:
+                result.add(q.peek());
+                break;
+            case 7:
+                result.add(q.drainTo(result, n));
+                break;
+            case 8:
+                Object[] array = new Object[n];
+                int drained = q.drainTo(array, 0, n);
+                result.addAll(Arrays.asList(array).subList(0, drained));
+                break;
+            case 9:
+                if (!q.isEmpty()) {
+                    result.add(q.takeBatchFromNext(result, n));
+                }
+                break;
+            case 10:
+                LinkedBlockingMultiQueue.Entry<QueueKey, Integer> entry = new LinkedBlockingMultiQueue.Entry<>();
+                if (q.pollEntry(entry)) {
+                    result.add(entry.getKey());
+                    result.add(entry.getElement());
+                }
+                break;
+            case 11:
+                if (sq != null) {
+                    sq.enable(!sq.isEnabled());
+                }
+                break;
+            case 12:
+                if (sq != null) {
+                    sq.clear();
+                }
+                break;
+            case 13:
+                result.add(q.removeSubQueue(key) != null);
+                break;
+            case 14:
+                result.add(q.addSubQueue(key, splitTestPriority(key)) != null);
+                break;
+            default:
+                result.add(q.poll(0, MILLISECONDS));
+        }
+        result.add(q.totalSize());
+        result.add(q.isEmpty());
+        return result;
+    }
+
+    /** with LIFO wakeup, the consumer that started waiting last gets the element first */
+    @Test
+    public void testLifoWakeup() throws InterruptedException {
+        LinkedBlockingMultiQueue<QueueKey, Integer> q = createSingleQueue();
+        LinkedBlockingMultiQueue<QueueKey, Integer>.SubQueue sq = q.getSubQueue(QueueKey.A);
+        q.setLifoWakeup(true);
+        ConcurrentHashMap<String, Integer> taken = new ConcurrentHashMap<>();
+        Thread first = newStartedThread(new CheckedRunnable() {
+            public void realRun() throws InterruptedException {
+                taken.put("first", q.take());
+            }
+        });
+        waitForThreadToEnterWaitState(first, LONG_DELAY_MS);
+        Thread second = newStartedThread(new CheckedRunnable() {
+            public void realRun() throws InterruptedException {
+                taken.put("second", q.take());
+            }
+        });
+        waitForThreadToEnterWaitState(second, LONG_DELAY_MS);
+        sq.put(one);
+        awaitTermination(second);
+        assertEquals(one, taken.get("second"));
+        assertTrue(first.isAlive());
+        sq.put(two);
+        awaitTermination(first);
+        assertEquals(two, taken.get("first"));
+
+        // timed-out waiters leave the stack
+        assertNull(q.poll(timeoutMillis(), MILLISECONDS));
+        sq.put(three);
+        assertEquals(three, q.poll(LONG_DELAY_MS, MILLISECONDS));
+    }
+
+    /** drainTo with a minimum waits for that many elements, takes the available ones in a batch, and times out */
+    @Test
+    public void testDrainToMinElements() throws InterruptedException {
+        LinkedBlockingMultiQueue<QueueKey, Integer> q = createMultiQueue();
+        ArrayList<Integer> l = new ArrayList<>();
+        assertThrows(NullPointerException.class, () -> q.drainTo(null, 1, 1, 0, MILLISECONDS));
+
+        // available elements are taken at once, in priority order, without waiting
+        q.getSubQueue(QueueKey.B).offer(two);
+        q.getSubQueue(QueueKey.A).offer(one);
+        q.getSubQueue(QueueKey.C).offer(three);
+        assertEquals(2, q.drainTo(l, 1, 2, LONG_DELAY_MS, MILLISECONDS));
+        assertEquals(Arrays.asList(one, two), l);
+        assertEquals(1, q.totalSize());
+
+        // waits until the minimum is reached
+        l.clear();
+        Thread t = newStartedThread(new CheckedRunnable() {
+            public void realRun() throws InterruptedException {
+                for (int i = 0; i < 5; i++) {
+                    Thread.sleep(SHORT_DELAY_MS / 5);
+                    q.getSubQueue(QueueKey.A).put(i);
+                }
+            }
+        });
+        assertTrue(q.drainTo(l, 6, 10, LONG_DELAY_MS, MILLISECONDS) >= 6);
+        awaitTermination(t);
+        assertEquals(three, l.get(0));
+
+        // gives up after the timeout, keeping what was drained
+        q.drainTo(l);
+        l.clear();
+        q.getSubQueue(QueueKey.A).offer(one);
+        long startTime = System.nanoTime();
+        assertEquals(1, q.drainTo(l, 2, 10, timeoutMillis(), MILLISECONDS));
+        assertTrue(millisElapsedSince(startTime) >= timeoutMillis());
+        assertEquals(Collections.singletonList(one), l);
+    }
+
+    /** entry variants report the key of the sub-queue each element was taken from into a reusable holder */
+    @Test
+    public void testTakeEntry() throws InterruptedException {
+        LinkedBlockingMultiQueue<QueueKey, Integer> q = createMultiQueue();
+        LinkedBlockingMultiQueue.Entry<QueueKey, Integer> entry = new LinkedBlockingMultiQueue.Entry<>();
+        assertThrows(NullPointerException.class, () -> q.pollEntry(null));
+        assertFalse(q.pollEntry(entry));
+        assertNull(entry.getKey());
+        assertNull(entry.getElement());
+
+        q.getSubQueue(QueueKey.B).offer(two);
+        q.getSubQueue(QueueKey.A).offer(one);
+        q.getSubQueue(QueueKey.C).offer(three);
+        q.takeEntry(entry);
+        assertEquals(QueueKey.A, entry.getKey());
+        assertEquals(one, entry.getElement());
+        assertTrue(q.pollEntry(entry));
+        assertEquals(QueueKey.B, entry.getKey());
+        assertEquals(two, entry.getElement());
+        assertTrue(q.pollEntry(entry, 0, MILLISECONDS));
+        assertEquals(QueueKey.C, entry.getKey());
+        assertEquals(three, entry.getElement());
+
+        // the holder is left unchanged on timeout
+        long startTime = System.nanoTime();
+        assertFalse(q.pollEntry(entry, timeoutMillis(), MILLISECONDS));
+        assertTrue(millisElapsedSince(startTime) >= timeoutMillis());
+        assertEquals(QueueKey.C, entry.getKey());
+        assertEquals(three, entry.getElement());
+    }
+
+    /** drainTo an array stores the elements from the given offset, in the same order as drainTo a collection */
+    @Test
+    public void testDrainToArray() {
+        LinkedBlockingMultiQueue<QueueKey, Integer> q = createMultiQueue();
+        Object[] a = new Object[5];
+        assertThrows(NullPointerException.class, () -> q.drainTo(null, 0, 1));
+        assertThrows(IndexOutOfBoundsException.class, () -> q.drainTo(a, -1, 1));
+        assertThrows(IndexOutOfBoundsException.class, () -> q.drainTo(a, 6, 1));
+        assertEquals(0, q.drainTo(a, 0, Integer.MAX_VALUE));
+
+        q.getSubQueue(QueueKey.B).offer(two);
+        q.getSubQueue(QueueKey.B).offer(four);
+        q.getSubQueue(QueueKey.A).offer(one);
+        q.getSubQueue(QueueKey.C).offer(three);
+        assertEquals(3, q.drainTo(a, 1, 3));
+        assertArrayEquals(new Object[] {null, one, two, three, null}, a);
+        // maxElements is only an upper bound, limited by the room left in the array
+        q.getSubQueue(QueueKey.A).offer(five);
+        assertEquals(1, q.drainTo(a, 4, Integer.MAX_VALUE));
+        assertArrayEquals(new Object[] {null, one, two, three, five}, a);
+        assertEquals(0, q.drainTo(a, 5, 1));
+        assertEquals(1, q.drainTo(a, 0, 5));
+        assertArrayEquals(new Object[] {four, one, two, three, five}, a);
+        assertTrue(q.isEmpty());
+
+        // elements that do not fit the type of the array are left in the queue
+        q.getSubQueue(QueueKey.A).offer(six);
+        assertThrows(ArrayStoreException.class, () -> q.drainTo(new String[1], 0, 1));
+        assertEquals(six, q.poll());
+    }
+
+    /** with a drain quantum, drainTo takes up to that many consecutive elements from each sub-queue in its turn */
+    @Test
+    public void testDrainQuantum() {
+        LinkedBlockingMultiQueue<QueueKey, Integer> q = createMultiQueue();
+        assertThrows(IllegalArgumentException.class, () -> q.setDrainQuantum(0));
+        q.setDrainQuantum(2);
+        q.getSubQueue(QueueKey.A).offer(zero);
+        for (int i = 1; i <= 5; i++) {
+            q.getSubQueue(QueueKey.B).offer(i);
+        }
+        q.getSubQueue(QueueKey.C).offer(six);
+        q.getSubQueue(QueueKey.C).offer(seven);
+        q.getSubQueue(QueueKey.C).offer(eight);
+        ArrayList<Integer> l = new ArrayList<>();
+        assertEquals(6, q.drainTo(l, 6));
+        assertEquals(Arrays.asList(zero, one, two, six, seven, three), l);
+        l.clear();
+        assertEquals(3, q.drainTo(l));
+        assertEquals(Arrays.asList(eight, four, five), l);
+        assertTrue(q.isEmpty());
+        assertEquals(0, q.totalSize());
+    }
+
+    /** an element that the target collection rejects is left in the queue */
+    @Test
+    public void testDrainToRejectingCollection() {
+        LinkedBlockingMultiQueue<QueueKey, Integer> q = createMultiQueue();
+        q.setDrainQuantum(4);
+        for (int i = 0; i < 4; i++) {
+            q.getSubQueue(QueueKey.A).offer(i);
+        }
+        ArrayList<Integer> l = new ArrayList<Integer>() {
+            @Override
+            public boolean add(Integer e) {
+                if (size() == 2) {
+                    throw new IllegalStateException();
+                }
+                return super.add(e);
+            }
+        };
+        assertThrows(IllegalStateException.class, () -> q.drainTo(l));
+        assertEquals(Arrays.asList(zero, one), l);
+        assertEquals(2, q.totalSize());
+        assertEquals(2, q.getSubQueue(QueueKey.A).size());
+        assertEquals(two, q.poll());
+        assertEquals(three, q.poll());
+        assertTrue(q.isEmpty());
+    }
+
+    /** batch takes return consecutive elements of a single sub-queue, selected as take() would */
+    @Test
+    public void testTakeBatchFromNext() throws InterruptedException {
+        LinkedBlockingMultiQueue<QueueKey, Integer> q = createMultiQueue();
+        ArrayList<Integer> l = new ArrayList<>();
+        assertThrows(NullPointerException.class, () -> q.takeBatchFromNext(null, 1));
+        assertThrows(IllegalArgumentException.class, () -> q.takeBatchFromNext(l, 0));
+
+        q.getSubQueue(QueueKey.B).offer(four);
+        q.getSubQueue(QueueKey.B).offer(five);
+        q.getSubQueue(QueueKey.C).offer(six);
+        q.getSubQueue(QueueKey.A).offer(one);
+        q.getSubQueue(QueueKey.A).offer(two);
+        q.getSubQueue(QueueKey.A).offer(three);
+        assertEquals(QueueKey.A, q.takeBatchFromNext(l, 2));
+        assertEquals(Arrays.asList(one, two), l);
+        assertEquals(QueueKey.A, q.takeBatchFromNext(l, 10));
+        assertEquals(Arrays.asList(one, two, three), l);
+        l.clear();
+        assertEquals(QueueKey.B, q.takeBatchFromNext(l, 10));
+        assertEquals(Arrays.asList(four, five), l);
+        l.clear();
+        assertEquals(QueueKey.C, q.pollBatchFromNext(l, 10, 0, MILLISECONDS));
+        assertEquals(Collections.singletonList(six), l);
+        assertTrue(q.isEmpty());
+
+        // times out when empty
+        long startTime = System.nanoTime();
+        assertNull(q.pollBatchFromNext(l, 10, timeoutMillis(), MILLISECONDS));
+        assertTrue(millisElapsedSince(startTime) >= timeoutMillis());
+
+        // blocks until an element is available
+        l.clear();
+        Thread t = newStartedThread(new CheckedRunnable() {
+            public void realRun() throws InterruptedException {
+                Thread.sleep(SHORT_DELAY_MS);
+                q.getSubQueue(QueueKey.C).put(seven);
+            }
+        });
+        assertEquals(QueueKey.C, q.takeBatchFromNext(l, 10));
+        assertEquals(Collections.singletonList(seven), l);
+        awaitTermination(t);
+    }
+
+    /** stats count insertions, removals from the head, rejected and timed-out offers, and the peak size */
+    @Test
+    public void testStats() throws InterruptedException {
+        LinkedBlockingMultiQueue<QueueKey, Integer> q = createSingleQueue(2);
+        LinkedBlockingMultiQueue<QueueKey, Integer>.SubQueue sq = q.getSubQueue(QueueKey.A);
+        q.setStatsEnabled(true);
+        assertTrue(sq.offer(one));
+        sq.put(two);
+        assertFalse(sq.offer(three));
+        assertFalse(sq.offer(three, 0, MILLISECONDS));
+        assertEquals(one, q.poll());
+        assertTrue(sq.remove(two));
+        QueueStats stats = sq.stats();
+        assertEquals(2, stats.getEnqueued());
+        assertEquals(1, stats.getDequeued());
+        assertEquals(1, stats.getRejectedOffers());
+        assertEquals(1, stats.getTimedOutOffers());
+        assertEquals(2, stats.getPeakSize());
+        assertTrue(stats.getBlockedNanos() >= 0);
+    }
+
+    /** multi-queue stats add up the counters of all sub-queues */
+    @Test
+    public void testStatsMulti() {
+        LinkedBlockingMultiQueue<QueueKey, Integer> q = new LinkedBlockingMultiQueue<>();
+        // sub-queues added afterwards also count
+        q.setStatsEnabled(true);
+        for (QueueKey key : QueueKey.values()) {
+            q.addSubQueue(key, 1);
+            for (int i = 0; i < 3; i++) {
+                assertTrue(q.getSubQueue(key).offer(i));
+            }
+        }
+        ArrayList<Integer> l = new ArrayList<>();
+        assertEquals(4, q.drainTo(l, 4));
+        QueueStats stats = q.stats();
+        assertEquals(9, stats.getEnqueued());
+        assertEquals(4, stats.getDequeued());
+        assertEquals(0, stats.getRejectedOffers());
+        assertEquals(3, stats.getPeakSize());
+    }
+
+    /** counters are only kept while enabled, and keep their values after being disabled */
+    @Test
+    public void testStatsEnabled() {
+        LinkedBlockingMultiQueue<QueueKey, Integer> q = createSingleQueue(10);
+        LinkedBlockingMultiQueue<QueueKey, Integer>.SubQueue sq = q.getSubQueue(QueueKey.A);
+        assertTrue(sq.offer(one));
+        assertEquals(0, sq.stats().getEnqueued());
+        q.setStatsEnabled(true);
+        assertTrue(sq.offer(two));
+        assertEquals(one, q.poll());
+        q.setStatsEnabled(false);
+        assertTrue(sq.offer(three));
+        assertEquals(two, q.poll());
+        QueueStats stats = sq.stats();
+        assertEquals(1, stats.getEnqueued());
+        assertEquals(1, stats.getDequeued());
+        assertEquals(2, stats.getPeakSize());
+        // enabling again starts from zero
+        q.setStatsEnabled(true);
+        assertEquals(0, sq.stats().getEnqueued());
+    }
+
+    /** time spent by put waiting for space is accounted as blocked time */
+    @Test
+    public void testStatsBlockedTime() throws InterruptedException {
+        final LinkedBlockingMultiQueue<QueueKey, Integer> q = createSingleQueue(1);
+        final LinkedBlockingMultiQueue<QueueKey, Integer>.SubQueue sq = q.getSubQueue(QueueKey.A);
+        q.setStatsEnabled(true);
+        sq.put(zero);
+        Thread t = newStartedThread(new CheckedRunnable() {
+            public void realRun() throws InterruptedException {
+                sq.put(one);
+            }
+        });
+        waitForThreadToEnterWaitState(t, LONG_DELAY_MS);
+        delay(timeoutMillis());
+        assertEquals(zero, q.take());
+        awaitTermination(t);
+        assertTrue(sq.stats().getBlockedNanos() >= MILLISECONDS.toNanos(timeoutMillis()));
+    }
+
+    /** with sojourn tracking, the age of the head is reported and taken elements are recorded */
+    @Test
+    public void testSojournTracking() throws InterruptedException {
+        LinkedBlockingMultiQueue<QueueKey, Integer> q = createSingleQueue();
+        LinkedBlockingMultiQueue<QueueKey, Integer>.SubQueue sq = q.getSubQueue(QueueKey.A);
+        assertEquals(0, sq.oldestElementAgeNanos());
+        sq.offer(zero);
+        assertEquals(-1, sq.oldestElementAgeNanos());
+        q.setSojournTracking(1);
+        sq.offer(one);
+        sq.offer(two);
+        assertEquals(zero, q.poll());
+        assertEquals(0, q.sojournTimes().getCount());
+        delay(SHORT_DELAY_MS);
+        long delayNanos = MILLISECONDS.toNanos(SHORT_DELAY_MS);
+        assertTrue(sq.oldestElementAgeNanos() >= delayNanos);
+        assertEquals(one, q.poll());
+        assertEquals(two, q.poll());
+        assertEquals(0, sq.oldestElementAgeNanos());
+        LatencyHistogram sojournTimes = q.sojournTimes();
+        assertEquals(2, sojournTimes.getCount());
+        assertTrue(sojournTimes.getMin() >= delayNanos);
+        assertTrue(sojournTimes.getValueAtPercentile(50) >= delayNanos);
+        assertTrue(sojournTimes.getValueAtPercentile(100) == sojournTimes.getMax());
+    }
+
+    /** with a sampling greater than one, only some of the taken elements are recorded */
+    @Test
+    public void testSojournTrackingSampling() {
+        LinkedBlockingMultiQueue<QueueKey, Integer> q = populatedMultiQueue();
+        q.setSojournTracking(3);
+        LinkedBlockingMultiQueue<QueueKey, Integer>.SubQueue sq = q.getSubQueue(QueueKey.A);
+        for (int i = 0; i < SIZE; i++) {
+            sq.offer(i);
+        }
+        q.drainTo(new ArrayList<>());
+        // the first one is recorded, and then one every three
+        assertEquals((SIZE + 2) / 3, q.sojournTimes().getCount());
+    }
+
+    /** lock profiling records acquisitions split by lock and operation, only while enabled */
+    @Test
+    public void testLockProfiling() {
+        LinkedBlockingMultiQueue<QueueKey, Integer> q = createSingleQueue();
+        LinkedBlockingMultiQueue<QueueKey, Integer>.SubQueue sq = q.getSubQueue(QueueKey.A);
+        sq.offer(zero);
+        q.setLockProfiling(true);
+        sq.offer(one);
+        sq.offer(two);
+        assertEquals(zero, q.poll());
+        q.drainTo(new ArrayList<>());
+        q.setLockProfiling(false);
+        sq.offer(three);
+        assertEquals(three, q.poll());
+        LockProfile profile = q.lockProfile();
+        assertEquals(2, profile.getWaitTimes(LockProfile.Lock.PUT, LockProfile.Site.OFFER).getCount());
+        assertEquals(2, profile.getHoldTimes(LockProfile.Lock.PUT, LockProfile.Site.OFFER).getCount());
+        assertEquals(1, profile.getWaitTimes(LockProfile.Lock.TAKE, LockProfile.Site.POLL).getCount());
+        assertEquals(1, profile.getHoldTimes(LockProfile.Lock.TAKE, LockProfile.Site.DRAIN_TO).getCount());
+        assertEquals(0, profile.getHoldTimes(LockProfile.Lock.TAKE, LockProfile.Site.TAKE).getCount());
+        q.setLockProfiling(true);
+        assertEquals(
+                0,
+                q.lockProfile()
+                        .getWaitTimes(LockProfile.Lock.PUT, LockProfile.Site.OFFER)
+                        .getCount());
+    }
+
+    /** operations that would not take anything from an empty queue do not acquire the take lock */
+    @Test
+    public void testEmptyFastPath() {
+        LinkedBlockingMultiQueue<QueueKey, Integer> q = createMultiQueue();
+        q.getSubQueue(QueueKey.A).offer(one);
+        q.getSubQueue(QueueKey.B).enable(false);
+        q.getSubQueue(QueueKey.B).offer(two);
+        assertEquals(one, q.poll());
+        q.setLockProfiling(true);
+        assertNull(q.poll());
+        assertNull(q.peek());
+        assertFalse(q.pollEntry(new LinkedBlockingMultiQueue.Entry<>()));
+        assertEquals(0, q.drainTo(new ArrayList<>()));
+        assertEquals(0, q.drainTo(new Object[1], 0, 1));
+        assertFalse(q.getSubQueue(QueueKey.B).isEnabled());
+        assertTrue(q.getSubQueue(QueueKey.C).isEnabled());
+        LockProfile profile = q.lockProfile();
+        for (LockProfile.Site site : LockProfile.Site.values()) {
+            assertEquals(0, profile.getWaitTimes(LockProfile.Lock.TAKE, site).getCount());
+        }
+        q.setLockProfiling(false);
+        q.getSubQueue(QueueKey.B).enable(true);
+        assertEquals(two, q.peek());
+        assertEquals(two, q.poll());
+    }
+
     void checkEmpty(LinkedBlockingMultiQueue<?, ?> q) {
         try {
             assertTrue(q.isEmpty());